@@ -0,0 +1,130 @@
+package com.rainsun.d7_thread_pool;
+
+import ch.qos.logback.classic.Logger;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.LoggerFactory;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按 key 串行执行：KeyedExecutor 对比每个分片一个单线程池
+ * 分片方案里 key 固定落在 hash 对应的线程上，热点 key 所在的分片排队，其他分片的线程闲着；
+ * KeyedExecutor 只要求同一个 key 串行，不同 key 可以在任意 worker 上执行
+ *
+ * 运行：java -jar target/benchmarks.jar KeyedExecutorBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(KeyedExecutorBenchmark.BURST)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyedExecutorBenchmark {
+    static final int BURST = 100;
+
+    public enum Kind {
+        KEYED,
+        // 每个分片一个单线程的 ThreadPool，key 按 hash 取模选分片
+        SHARDED
+    }
+
+    public enum Distribution {
+        UNIFORM,
+        // 一半的任务落在同一个 key 上
+        HOT_KEY
+    }
+
+    @Param
+    public Kind kind;
+
+    @Param
+    public Distribution distribution;
+
+    @Param({"16", "1024"})
+    public int keys;
+
+    @Param({"100", "2000"})
+    public int taskTokens;
+
+    private int workers;
+    private ThreadPool pool;
+    private KeyedExecutor<Integer> keyed;
+    private ThreadPool[] shards;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ((Logger) LoggerFactory.getLogger("c")).setLevel(ch.qos.logback.classic.Level.WARN);
+        workers = Runtime.getRuntime().availableProcessors();
+        if (kind == Kind.KEYED) {
+            pool = newPool(workers);
+            keyed = new KeyedExecutor<>(pool);
+        } else {
+            shards = new ThreadPool[workers];
+            for (int i = 0; i < workers; i++) {
+                shards[i] = newPool(1);
+            }
+        }
+    }
+
+    private static ThreadPool newPool(int size) {
+        ThreadPool pool = new ThreadPool(size, size, 100, TimeUnit.MILLISECONDS,
+                new BlockQueue<>(1024), (q, task) -> q.put(task));
+        pool.prestartCoreWorkers();
+        return pool;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        if (shards != null) {
+            for (ThreadPool shard : shards) {
+                shard.shutdown();
+            }
+        }
+    }
+
+    // 每个生产者预先生成 key 序列，测量时不调用随机数
+    @State(Scope.Thread)
+    public static class Keys {
+        final int[] sequence = new int[4096];
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup(KeyedExecutorBenchmark benchmark) {
+            SplittableRandom random = new SplittableRandom(Thread.currentThread().threadId());
+            for (int i = 0; i < sequence.length; i++) {
+                boolean hot = benchmark.distribution == Distribution.HOT_KEY && random.nextBoolean();
+                sequence[i] = hot ? 0 : random.nextInt(benchmark.keys);
+            }
+        }
+
+        Integer next() {
+            return sequence[next++ & (sequence.length - 1)];
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void burst(ThreadPoolBenchmark.Producer producer, Keys keys) {
+        int tokens = taskTokens;
+        producer.remaining.set(BURST);
+        Runnable task = () -> {
+            Blackhole.consumeCPU(tokens);
+            producer.done();
+        };
+        for (int i = 0; i < BURST; i++) {
+            Integer key = keys.next();
+            if (kind == Kind.KEYED) {
+                keyed.execute(key, task);
+            } else {
+                shards[(key.hashCode() & Integer.MAX_VALUE) % workers].execute(task);
+            }
+        }
+        producer.await();
+    }
+}
@@ -0,0 +1,128 @@
+package com.rainsun.d7_thread_pool;
+
+import ch.qos.logback.classic.Logger;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 三级流水线：每一级一个 ThreadPool、execute 到下一级，对比预分配事件的 Pipeline
+ * 一次操作 = 发布 BURST 个事件并等最后一级处理完；加上 -prof gc 可以看到每个事件分配的字节数
+ *
+ * 运行：java -jar target/benchmarks.jar PipelineBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(PipelineBenchmark.BURST)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+    static final int BURST = 1000;
+
+    public enum Kind {
+        // 每一级一个单线程 ThreadPool，每个事件每一级分配一个 Runnable
+        CHAINED_THREAD_POOLS,
+        PIPELINE_BLOCKING,
+        PIPELINE_YIELDING
+    }
+
+    static class Event {
+        long value;
+    }
+
+    @Param
+    public Kind kind;
+
+    private ThreadPool[] stages;
+    private Pipeline<Event> pipeline;
+
+    // 最后一级处理到 waitFor 时写入 completed 并唤醒生产者
+    private volatile long waitFor = Long.MAX_VALUE;
+    private volatile long completed = -1;
+    private volatile Thread producer;
+    private long sink;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ((Logger) LoggerFactory.getLogger("c")).setLevel(ch.qos.logback.classic.Level.WARN);
+        if (kind == Kind.CHAINED_THREAD_POOLS) {
+            stages = new ThreadPool[3];
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new ThreadPool(1, 1, 100, TimeUnit.MILLISECONDS,
+                        new BlockQueue<>(1024), (q, task) -> q.put(task));
+                stages[i].prestartCoreWorkers();
+            }
+        } else {
+            pipeline = new Pipeline<>(Event::new, 1024, false, kind == Kind.PIPELINE_BLOCKING
+                    ? SequenceWaitStrategy.blocking()
+                    : SequenceWaitStrategy.yielding(100));
+            pipeline.handleEventsWith((e, seq, end) -> e.value += 1)
+                    .then((e, seq, end) -> e.value *= 3)
+                    .then((e, seq, end) -> {
+                        sink += e.value;
+                        if (seq == waitFor) {
+                            completed = seq;
+                            LockSupport.unpark(producer);
+                        }
+                    });
+            pipeline.start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (stages != null) {
+            for (ThreadPool stage : stages) {
+                stage.shutdown();
+            }
+        }
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+    }
+
+    @Benchmark
+    public void burst(ThreadPoolBenchmark.Producer producer) {
+        if (kind != Kind.CHAINED_THREAD_POOLS) {
+            pipeline(producer);
+            return;
+        }
+        producer.remaining.set(BURST);
+        for (int i = 0; i < BURST; i++) {
+            long value = i;
+            stages[0].execute(() -> {
+                long v1 = value + 1;
+                stages[1].execute(() -> {
+                    long v2 = v1 * 3;
+                    stages[2].execute(() -> {
+                        sink += v2;
+                        producer.done();
+                    });
+                });
+            });
+        }
+        producer.await();
+    }
+
+    private void pipeline(ThreadPoolBenchmark.Producer producer) {
+        this.producer = producer.thread;
+        long sequence = -1;
+        for (int i = 0; i < BURST; i++) {
+            sequence = pipeline.ring().next();
+            pipeline.ring().get(sequence).value = i;
+            if (i == BURST - 1) {
+                // 发布之前设置，最后一级处理到它时一定能看到
+                waitFor = sequence;
+            }
+            pipeline.ring().publish(sequence);
+        }
+        while (completed < sequence) {
+            LockSupport.park(this);
+        }
+    }
+}
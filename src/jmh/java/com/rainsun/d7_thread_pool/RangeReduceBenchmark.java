@@ -0,0 +1,82 @@
+package com.rainsun.d7_thread_pool;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * 区间 [0, n) 求和和 int[] 求和
+ * AddTask 只在区间不超过 int 范围、结果不溢出时有意义，它的求和区间是闭区间 [0, n - 1]
+ *
+ * 运行：java -jar target/benchmarks.jar RangeReduceBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RangeReduceBenchmark {
+    @Param({"10000", "1000000"})
+    public int n;
+
+    private ForkJoinPool pool;
+    private RangeReducer reducer;
+    private int[] array;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        pool = ForkJoinPool.commonPool();
+        reducer = new RangeReducer(pool);
+        array = new int[n];
+        for (int i = 0; i < n; i++) {
+            array[i] = i & 1023;
+        }
+    }
+
+    @Benchmark
+    public int rangeAddTask() {
+        return pool.invoke(new AddTask(0, n - 1));
+    }
+
+    @Benchmark
+    public long rangeLoop() {
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += i;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long rangeIntStreamParallel() {
+        return IntStream.range(0, n).parallel().asLongStream().sum();
+    }
+
+    @Benchmark
+    public long rangeReducer() {
+        return reducer.mapReduce(0, n, 0, i -> i, Long::sum);
+    }
+
+    @Benchmark
+    public long arrayLoop() {
+        long sum = 0;
+        for (int v : array) {
+            sum += v;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long arrayStreamParallel() {
+        return Arrays.stream(array).parallel().asLongStream().sum();
+    }
+
+    @Benchmark
+    public long arrayReducer() {
+        return reducer.sum(array);
+    }
+}
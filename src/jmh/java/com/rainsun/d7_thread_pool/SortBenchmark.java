@@ -0,0 +1,129 @@
+package com.rainsun.d7_thread_pool;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * long[] 和按 long key 排序的对象数组，和 Arrays.parallelSort 对比
+ * 输入分布：均匀随机、已排序、逆序、Zipf（s = 1.1，10 万个不同的值，少数值出现次数很多）
+ * 每次调用前从原始数据复制一份，复制的时间不计入结果
+ *
+ * 运行：java -jar target/benchmarks.jar SortBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SortBenchmark {
+    public enum Distribution {
+        UNIFORM, SORTED, REVERSE, ZIPF
+    }
+
+    record Item(long key) {
+    }
+
+    @Param({"1000000"})
+    public int n;
+
+    @Param
+    public Distribution distribution;
+
+    private ParallelSorter sorter;
+    private long[] data;
+    private long[] work;
+    private long[] scratch;
+    private Item[] items;
+    private Item[] itemWork;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        sorter = new ParallelSorter(ForkJoinPool.commonPool());
+        data = generate(distribution, n, new SplittableRandom(42));
+        work = new long[n];
+        scratch = new long[n];
+        items = new Item[n];
+        for (int i = 0; i < n; i++) {
+            items[i] = new Item(data[i]);
+        }
+        itemWork = new Item[n];
+    }
+
+    @Setup(Level.Invocation)
+    public void copy() {
+        System.arraycopy(data, 0, work, 0, n);
+        System.arraycopy(items, 0, itemWork, 0, n);
+    }
+
+    static long[] generate(Distribution distribution, int n, SplittableRandom random) {
+        long[] a = new long[n];
+        switch (distribution) {
+            case UNIFORM -> {
+                for (int i = 0; i < n; i++) {
+                    a[i] = random.nextLong();
+                }
+            }
+            case SORTED -> {
+                for (int i = 0; i < n; i++) {
+                    a[i] = i;
+                }
+            }
+            case REVERSE -> {
+                for (int i = 0; i < n; i++) {
+                    a[i] = n - i;
+                }
+            }
+            case ZIPF -> {
+                // 累积分布上二分查找
+                int values = 100_000;
+                double[] cdf = new double[values];
+                double sum = 0;
+                for (int k = 0; k < values; k++) {
+                    sum += 1 / Math.pow(k + 1, 1.1);
+                    cdf[k] = sum;
+                }
+                for (int i = 0; i < n; i++) {
+                    int k = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+                    a[i] = k >= 0 ? k : -k - 1;
+                }
+            }
+        }
+        return a;
+    }
+
+    @Benchmark
+    public long[] arraysParallelSort() {
+        Arrays.parallelSort(work);
+        return work;
+    }
+
+    @Benchmark
+    public long[] mergeSort() {
+        sorter.mergeSort(work, scratch);
+        return work;
+    }
+
+    @Benchmark
+    public long[] sampleSort() {
+        sorter.sampleSort(work);
+        return work;
+    }
+
+    @Benchmark
+    public Item[] objectsParallelSort() {
+        Arrays.parallelSort(itemWork, Comparator.comparingLong(Item::key));
+        return itemWork;
+    }
+
+    @Benchmark
+    public Item[] objectsSortByKey() {
+        sorter.sortByKey(itemWork, Item::key);
+        return itemWork;
+    }
+}
@@ -0,0 +1,142 @@
+package com.rainsun.d7_thread_pool;
+
+import ch.qos.logback.classic.Logger;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 一个生产者线程到一个消费者线程的交接吞吐
+ * 两个线程在同一个 group 里并发运行，offer / poll 都不阻塞，失败直接返回，
+ * 看 AuxCounters 里的 polled（每秒真正交接的元素数），不要看 group 的总 ops
+ *
+ * 运行：java -jar target/benchmarks.jar SpscBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class SpscBenchmark {
+    private static final Integer ELEMENT = 1;
+    private static final int BATCH = 64;
+
+    public enum Kind {
+        SPSC,
+        // offer(array) / drain，一批只发布一次下标
+        SPSC_BATCH,
+        BLOCK_QUEUE,
+        // offerAll / drainTo，一批只加一次锁
+        BLOCK_QUEUE_BATCH,
+        ARRAY_BLOCKING_QUEUE
+    }
+
+    @Param
+    public Kind kind;
+
+    @Param({"1024"})
+    public int capacity;
+
+    private SpscRingBuffer<Integer> spsc;
+    private BlockQueue<Integer> blockQueue;
+    private ArrayBlockingQueue<Integer> arrayBlockingQueue;
+
+    private final Integer[] batch = new Integer[BATCH];
+    private final List<Integer> batchList = new ArrayList<>(BATCH);
+    // 只有消费者线程使用
+    private final List<Integer> drained = new ArrayList<>(BATCH);
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // BlockQueue 入队时打 debug 日志
+        ((Logger) LoggerFactory.getLogger("c")).setLevel(ch.qos.logback.classic.Level.WARN);
+        spsc = new SpscRingBuffer<>(capacity);
+        blockQueue = new BlockQueue<>(capacity);
+        arrayBlockingQueue = new ArrayBlockingQueue<>(capacity);
+        Arrays.fill(batch, ELEMENT);
+        for (int i = 0; i < BATCH; i++) {
+            batchList.add(ELEMENT);
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class ProducerCounters {
+        public long offered;
+        public long offerFailed;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            offered = offerFailed = 0;
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class ConsumerCounters implements Consumer<Integer> {
+        public long polled;
+        public long pollEmpty;
+        Integer last;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            polled = pollEmpty = 0;
+        }
+
+        @Override
+        public void accept(Integer e) {
+            last = e;
+        }
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public void offer(ProducerCounters counters) {
+        int n = switch (kind) {
+            case SPSC -> spsc.offer(ELEMENT) ? 1 : 0;
+            case SPSC_BATCH -> spsc.offer(batch, 0, BATCH);
+            case BLOCK_QUEUE -> blockQueue.offer(ELEMENT, 0, TimeUnit.NANOSECONDS) ? 1 : 0;
+            case BLOCK_QUEUE_BATCH -> blockQueue.offerAll(batchList);
+            case ARRAY_BLOCKING_QUEUE -> arrayBlockingQueue.offer(ELEMENT) ? 1 : 0;
+        };
+        if (n == 0) {
+            counters.offerFailed++;
+        }
+        counters.offered += n;
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public Integer poll(ConsumerCounters counters) {
+        int n = switch (kind) {
+            case SPSC -> (counters.last = spsc.poll()) != null ? 1 : 0;
+            case SPSC_BATCH -> spsc.drain(counters, BATCH);
+            case BLOCK_QUEUE -> (counters.last = blockQueue.poll(0, TimeUnit.NANOSECONDS)) != null ? 1 : 0;
+            case BLOCK_QUEUE_BATCH -> drainBlockQueue(counters);
+            case ARRAY_BLOCKING_QUEUE -> (counters.last = arrayBlockingQueue.poll()) != null ? 1 : 0;
+        };
+        if (n == 0) {
+            counters.pollEmpty++;
+        }
+        counters.polled += n;
+        return counters.last;
+    }
+
+    private int drainBlockQueue(ConsumerCounters counters) {
+        drained.clear();
+        int n = blockQueue.drainTo(drained, BATCH);
+        if (n > 0) {
+            counters.last = drained.get(n - 1);
+        }
+        return n;
+    }
+}
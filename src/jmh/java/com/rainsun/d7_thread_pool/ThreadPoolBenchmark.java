@@ -0,0 +1,189 @@
+package com.rainsun.d7_thread_pool;
+
+import ch.qos.logback.classic.Logger;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 自定义线程池和 JDK 线程池的对比
+ * 一次操作 = 一个生产者线程提交 BURST 个任务并等这批任务全部执行完，
+ * Throughput 模式看每秒完成的任务数，SampleTime 模式看一批任务的完成时间分布（p50 / p99 / p99.9）
+ * 生产者数量由 JMH 线程数决定，分别用 1、4、16 个生产者跑
+ *
+ * 运行：
+ *   mvn -P jmh package
+ *   java -jar target/benchmarks.jar ThreadPoolBenchmark -prof gc
+ * -prof gc 输出 gc.alloc.rate.norm，也就是每个任务分配的字节数
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(ThreadPoolBenchmark.BURST)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThreadPoolBenchmark {
+    static final int BURST = 100;
+
+    public enum Kind {
+        // 自定义线程池 + 锁实现的 BlockQueue
+        THREAD_POOL,
+        // 自定义线程池 + 无锁环形队列
+        THREAD_POOL_RING,
+        THREAD_POOL_EXECUTOR,
+        // ForkJoinPool 的队列没有上界，queueCapacity 和 policy 对它不起作用
+        FORK_JOIN_POOL,
+        // 每个任务一个虚拟线程，同样没有队列上界
+        VIRTUAL_THREADS
+    }
+
+    public enum Policy {
+        // 队列满时提交者自己执行
+        CALLER_RUNS,
+        // 队列满时提交者阻塞等待
+        BLOCK
+    }
+
+    @Param
+    public Kind kind;
+
+    // 每个任务消耗的 CPU，0 时测的是纯粹的提交和调度开销
+    @Param({"0", "100", "2000"})
+    public int taskTokens;
+
+    @Param({"64", "1024"})
+    public int queueCapacity;
+
+    @Param
+    public Policy policy;
+
+    private Executor executor;
+    private Runnable shutdown;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // 线程池在热路径上打 debug 日志，测量时关掉，否则测的是日志的开销
+        ((Logger) LoggerFactory.getLogger("c")).setLevel(ch.qos.logback.classic.Level.WARN);
+
+        int workers = Runtime.getRuntime().availableProcessors();
+        switch (kind) {
+            case THREAD_POOL, THREAD_POOL_RING -> {
+                TaskQueue<Runnable> queue = kind == Kind.THREAD_POOL
+                        ? new BlockQueue<>(queueCapacity)
+                        : new RingBlockQueue<>(queueCapacity);
+                RejectPolicy<Runnable> rejectPolicy = policy == Policy.CALLER_RUNS
+                        ? (q, task) -> task.run()
+                        : (q, task) -> q.put(task);
+                // keepAlive 取短一些，shutdown 后 worker 能尽快退出，不拖住 fork 出来的 JVM
+                ThreadPool pool = new ThreadPool(workers, workers, 100, TimeUnit.MILLISECONDS, queue, rejectPolicy);
+                pool.prestartCoreWorkers();
+                executor = pool;
+                shutdown = pool::shutdown;
+            }
+            case THREAD_POOL_EXECUTOR -> {
+                RejectedExecutionHandler handler = policy == Policy.CALLER_RUNS
+                        ? new ThreadPoolExecutor.CallerRunsPolicy()
+                        : (task, e) -> {
+                            try {
+                                e.getQueue().put(task);
+                            } catch (InterruptedException ex) {
+                                throw new RejectedExecutionException(ex);
+                            }
+                        };
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 100, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(queueCapacity), handler);
+                pool.prestartAllCoreThreads();
+                executor = pool;
+                shutdown = pool::shutdown;
+            }
+            case FORK_JOIN_POOL -> {
+                ForkJoinPool pool = new ForkJoinPool(workers);
+                executor = pool;
+                shutdown = pool::shutdown;
+            }
+            case VIRTUAL_THREADS -> {
+                ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
+                executor = pool;
+                shutdown = pool::shutdown;
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        shutdown.run();
+    }
+
+    // 每个生产者线程自己的计数，最后一个完成的任务唤醒生产者
+    @State(Scope.Thread)
+    public static class Producer {
+        final AtomicInteger remaining = new AtomicInteger();
+        Thread thread;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            thread = Thread.currentThread();
+        }
+
+        void done() {
+            if (remaining.decrementAndGet() == 0) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void await() {
+            while (remaining.get() != 0) {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void producers_01(Producer producer) {
+        burst(producer);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void producers_04(Producer producer) {
+        burst(producer);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void producers_16(Producer producer) {
+        burst(producer);
+    }
+
+    private void burst(Producer producer) {
+        int tokens = taskTokens;
+        producer.remaining.set(BURST);
+        for (int i = 0; i < BURST; i++) {
+            executor.execute(() -> {
+                Blackhole.consumeCPU(tokens);
+                producer.done();
+            });
+        }
+        producer.await();
+    }
+
+    // 在 IDE 里直接运行，默认带上 GC profiler
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ThreadPoolBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
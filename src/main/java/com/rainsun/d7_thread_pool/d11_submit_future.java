@@ -0,0 +1,253 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+@Slf4j(topic = "c.d11_submit_future")
+public class d11_submit_future {
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        ThreadPool threadPool = new ThreadPool(
+                2,
+                1000, TimeUnit.MILLISECONDS,
+                10,
+                (queue, task) -> queue.put(task));
+
+        // 1. 多级依赖：非 async 的后续阶段直接在完成上一阶段的 worker 上执行，不再经过任务队列
+        CompletableFuture<Integer> result = threadPool.submit(() -> {
+                    log.debug("stage 1");
+                    return 1;
+                })
+                .thenApply(i -> {
+                    log.debug("stage 2");
+                    return i + 1;
+                })
+                .thenApply(i -> {
+                    log.debug("stage 3");
+                    return i * 10;
+                });
+        log.debug("结果 {}", result.get());
+
+        // 2. 取消还在排队的任务，任务直接从 BlockQueue 中移除
+        for(int i = 0; i < 2; ++ i){
+            threadPool.submit(() -> sleep(500));
+        }
+        CompletableFuture<Void> queued = threadPool.submit(() -> log.debug("不会执行"));
+        log.debug("取消前队列 {} 个任务", threadPool.getQueueSize());
+        queued.cancel(false);
+        log.debug("取消后队列 {} 个任务", threadPool.getQueueSize());
+
+        // 3. invokeAll / invokeAny
+        List<Callable<String>> tasks = List.of(
+                () -> { sleep(300); return "slow"; },
+                () -> { sleep(100); return "fast"; },
+                () -> { throw new IllegalStateException("failed"); });
+        for (Future<String> future : threadPool.invokeAll(tasks)) {
+            log.debug("invokeAll {}", future.state() == Future.State.SUCCESS ? future.resultNow() : future.state());
+        }
+        log.debug("invokeAny {}", threadPool.invokeAny(tasks));
+        threadPool.shutdown();
+
+        // 4. 拒绝策略放弃任务时 future 以 RejectedExecutionException 完成，get 不会一直阻塞
+        ThreadPool discarding = new ThreadPool(
+                1,
+                1000, TimeUnit.MILLISECONDS,
+                1,
+                (queue, task) -> log.debug("放弃 {}", task));
+        CompletableFuture<Void> dropped = null;
+        for(int i = 0; i < 3; ++ i){
+            dropped = discarding.submit(() -> sleep(200));
+        }
+        try {
+            dropped.get();
+        } catch (ExecutionException e) {
+            log.debug("被放弃的任务 {}", e.getCause().toString());
+        }
+        discarding.shutdown();
+    }
+
+    private static void sleep(long millis){
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/**
+ * ThreadPool.submit 返回的 future
+ * 自己就是放入任务队列的 Runnable，一个任务只分配一个对象；
+ * 取消时把自己从任务队列中移除，队列不支持移除时留在队列里，被取出后 run 直接返回
+ * 后续阶段的默认执行器是所在的线程池，thenApply 等在完成任务的 worker 上直接执行，
+ * thenApplyAsync 等放回同一个线程池，而不是 ForkJoinPool.commonPool
+ */
+class PoolFuture<V> extends CompletableFuture<V> implements Runnable {
+    private final ThreadPool pool;
+
+    // 执行完或者是后续阶段时为 null，cancel 在别的线程上读
+    private volatile Callable<V> callable;
+
+    PoolFuture(ThreadPool pool, Callable<V> callable) {
+        this.pool = pool;
+        this.callable = callable;
+    }
+
+    @Override
+    public void run() {
+        Callable<V> c = callable;
+        // 已经取消，或者是后续阶段（没有自己的任务）
+        if(c == null || isDone()){
+            return;
+        }
+        callable = null;
+        try {
+            complete(c.call());
+        } catch (Throwable e) {
+            completeExceptionally(e);
+        }
+    }
+
+    // 只取消还没有开始的任务，和 CompletableFuture 一样不会中断正在执行的任务
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if(cancelled && callable != null){
+            pool.remove(this);
+        }
+        return cancelled;
+    }
+
+    @Override
+    public <U> CompletableFuture<U> newIncompleteFuture() {
+        return new PoolFuture<>(pool, null);
+    }
+
+    @Override
+    public Executor defaultExecutor() {
+        return pool;
+    }
+
+    @Override
+    public String toString() {
+        Callable<V> c = callable;
+        return c != null ? "PoolFuture[" + c + "]" : super.toString();
+    }
+
+    // 拒绝策略既没有把 future 放入队列也没有执行它（放弃任务）时，让 future 以 RejectedExecutionException 完成，
+    // 否则 get 会一直阻塞
+    static RejectPolicy<Runnable> failDropped(RejectPolicy<Runnable> policy){
+        return (queue, task) -> {
+            Runnable target = task instanceof ThreadPool.TimedTask timed ? timed.getTask() : task;
+            if(!(target instanceof PoolFuture<?> future)){
+                policy.reject(queue, task);
+                return;
+            }
+            TrackingQueue tracking = new TrackingQueue(queue);
+            policy.reject(tracking, task);
+            if(!tracking.accepted){
+                future.reject("任务被拒绝策略丢弃 ");
+            }
+        };
+    }
+
+    // 已经在队列里、又被拒绝策略踢出去的任务（例如 LifoUnderOverloadPolicy），是 future 时同样以 RejectedExecutionException 完成
+    static void failEvicted(Object task){
+        Object target = task instanceof ThreadPool.TimedTask timed ? timed.getTask() : task;
+        if(target instanceof PoolFuture<?> future){
+            future.reject("任务被拒绝策略踢出队列 ");
+        }
+    }
+
+    private void reject(String reason){
+        // 先生成异常，toString 还能打印出任务
+        RejectedExecutionException e = new RejectedExecutionException(reason + this);
+        callable = null;
+        completeExceptionally(e);
+    }
+
+    // 记录拒绝策略是否把任务放进了队列，其余操作直接转发
+    private static final class TrackingQueue implements TaskQueue<Runnable> {
+        private final TaskQueue<Runnable> queue;
+        private boolean accepted;
+
+        TrackingQueue(TaskQueue<Runnable> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public Runnable poll(long timeout, TimeUnit unit) {
+            return queue.poll(timeout, unit);
+        }
+
+        @Override
+        public Runnable tryPoll() {
+            return queue.tryPoll();
+        }
+
+        @Override
+        public Runnable take() {
+            return queue.take();
+        }
+
+        @Override
+        public void put(Runnable task) {
+            queue.put(task);
+            accepted = true;
+        }
+
+        @Override
+        public boolean offer(Runnable task, long timeout, TimeUnit timeUnit) {
+            return accepted |= queue.offer(task, timeout, timeUnit);
+        }
+
+        @Override
+        public boolean offer(Runnable task, int lane) {
+            return accepted |= queue.offer(task, lane);
+        }
+
+        @Override
+        public int getSize() {
+            return queue.getSize();
+        }
+
+        // 又交给了另一个拒绝策略，无法知道结果，按放入处理
+        @Override
+        public void tryPut(RejectPolicy<Runnable> rejectPolicy, Runnable task) {
+            queue.tryPut(rejectPolicy, task);
+            accepted = true;
+        }
+
+        @Override
+        public void tryPut(RejectPolicy<Runnable> rejectPolicy, Runnable task, int lane) {
+            queue.tryPut(rejectPolicy, task, lane);
+            accepted = true;
+        }
+
+        @Override
+        public int offerAll(List<? extends Runnable> tasks) {
+            int added = queue.offerAll(tasks);
+            accepted |= added > 0;
+            return added;
+        }
+
+        @Override
+        public int drainTo(Collection<? super Runnable> collection, int maxElements) {
+            return queue.drainTo(collection, maxElements);
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super Runnable> filter) {
+            return queue.removeIf(filter);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Slf4j(topic = "c.d12_keyed_executor")
+public class d12_keyed_executor {
+    public static void main(String[] args) throws InterruptedException {
+        ThreadPool threadPool = new ThreadPool(
+                4,
+                1000, TimeUnit.MILLISECONDS,
+                100,
+                (queue, task) -> queue.put(task));
+        KeyedExecutor<Integer> keyed = new KeyedExecutor<>(threadPool);
+
+        // 10 个实体，每个实体 100 个事件，同一个实体的事件必须按顺序、不能并发执行
+        int keys = 10, events = 100;
+        int[] next = new int[keys];
+        AtomicBoolean[] running = new AtomicBoolean[keys];
+        for (int k = 0; k < keys; k++) {
+            running[k] = new AtomicBoolean();
+        }
+        CountDownLatch latch = new CountDownLatch(keys * events);
+        for(int i = 0; i < events; ++ i){
+            for (int k = 0; k < keys; k++) {
+                int key = k, seq = i;
+                keyed.execute(key, () -> {
+                    if(!running[key].compareAndSet(false, true)){
+                        log.debug("key {} 被并发执行", key);
+                    }
+                    if(next[key] != seq){
+                        log.debug("key {} 乱序，期望 {} 实际 {}", key, next[key], seq);
+                    }
+                    next[key]++;
+                    running[key].set(false);
+                    latch.countDown();
+                });
+            }
+        }
+        latch.await();
+        Thread.sleep(100L);
+        log.debug("全部执行完毕，剩余 key {} 个", keyed.activeKeys());
+        threadPool.shutdown();
+    }
+}
+
+/**
+ * 按 key 串行的执行器
+ * 同一个 key 的任务按提交顺序执行、不会并发，不同 key 的任务分散到底层线程池的所有 worker 上
+ * 每个有任务的 key 对应一个串行队列，队列本身作为一个任务提交给底层线程池，依次执行自己的任务；
+ * 队列排空后从 map 中移除，空闲的 key 不占内存
+ * 新 key 的队列通过 execute 提交，底层线程池的拒绝策略不能丢弃任务，否则这个 key 不会再被执行
+ */
+@Slf4j(topic = "c.KeyedExecutor")
+class KeyedExecutor<K> {
+    private final Executor executor;
+
+    // 有任务的 key 才在 map 中，串行队列的加入和移除都在 map 的桶锁里进行
+    private final ConcurrentHashMap<K, SerialQueue> queues = new ConcurrentHashMap<>();
+
+    // 一个 key 连续执行多少个任务后让出 worker，避免热点 key 长期占着 worker
+    private final int maxBatch;
+
+    public KeyedExecutor(Executor executor) {
+        this(executor, 16);
+    }
+
+    public KeyedExecutor(Executor executor, int maxBatch) {
+        if(maxBatch <= 0){
+            throw new IllegalArgumentException("maxBatch must be positive: " + maxBatch);
+        }
+        this.executor = executor;
+        this.maxBatch = maxBatch;
+    }
+
+    public void execute(K key, Runnable task){
+        SerialQueue queue = queues.compute(key, (k, q) -> {
+            if(q == null){
+                q = new SerialQueue(k);
+            }
+            q.tasks.add(task);
+            return q;
+        });
+        // 新建的队列才需要提交，已有的队列正在执行或者已经在底层线程池里排队
+        if(!queue.started.get() && queue.started.compareAndSet(false, true)){
+            try {
+                executor.execute(queue);
+            } catch (RejectedExecutionException e) {
+                // 只撤回这一个任务，其他线程在这期间追加的任务不能丢：
+                // 队列空了才移除，否则标记为未提交，下一次提交这个 key 的任务时再交给线程池
+                queues.computeIfPresent(key, (k, q) -> {
+                    if(q != queue){
+                        return q;
+                    }
+                    q.tasks.remove(task);
+                    if(q.tasks.isEmpty()){
+                        return null;
+                    }
+                    q.started.set(false);
+                    return q;
+                });
+                throw e;
+            }
+        }
+    }
+
+    // 当前有任务的 key 数
+    public int activeKeys(){
+        return queues.size();
+    }
+
+    private final class SerialQueue implements Runnable {
+        private final K key;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // 只有第一个发现新队列的提交者负责把它交给底层线程池
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        SerialQueue(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            while(true){
+                for (int i = 0; i < maxBatch; i++) {
+                    Runnable task = tasks.poll();
+                    if(task == null){
+                        // 在桶锁里确认没有新任务才移除，和 execute 中的加入互斥
+                        if(queues.computeIfPresent(key, (k, q) -> q.tasks.isEmpty() ? null : q) == null){
+                            return;
+                        }
+                        continue;
+                    }
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } catch (Error e) {
+                        // 这个 worker 要退出了，先把队列交出去，否则 started 一直是 true，这个 key 后面的任务永远排着
+                        handOff();
+                        throw e;
+                    }
+                }
+                // 还有任务，重新排到线程池队尾，让其他 key 也能执行
+                if(resubmit()){
+                    return;
+                }
+                log.debug("线程池已满，继续在当前线程执行 key {}", key);
+            }
+        }
+
+        // 不再在当前线程继续执行：队列空了就移除，否则重新提交，提交不了就标记为未提交，由下一次提交这个 key 的任务时交给线程池
+        private void handOff(){
+            if(queues.computeIfPresent(key, (k, q) -> q.tasks.isEmpty() ? null : q) == null){
+                return;
+            }
+            if(!resubmit()){
+                started.set(false);
+            }
+        }
+
+        // worker 在这里阻塞等待入队可能让所有 worker 都卡住，所以对 ThreadPool 用不阻塞的 tryExecute
+        private boolean resubmit(){
+            if(executor instanceof ThreadPool pool){
+                return pool.tryExecute(this);
+            }
+            try {
+                executor.execute(this);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "SerialQueue[" + key + "]";
+        }
+    }
+}
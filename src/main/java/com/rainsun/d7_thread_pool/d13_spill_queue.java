@@ -0,0 +1,598 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+@Slf4j(topic = "c.d13_spill_queue")
+public class d13_spill_queue {
+    public static void main(String[] args) throws InterruptedException, IOException {
+        // 内存里最多 100 个任务，多出来的每 32 个一批写入 1MB 一段的映射文件
+        SpillBlockQueue<Runnable> queue = new SpillBlockQueue<>(
+                100, Files.createTempDirectory("spill"), 1 << 20, 32, false);
+        // 单个 worker，方便检查先进先出
+        ThreadPool threadPool = new ThreadPool(
+                1,
+                1000, TimeUnit.MILLISECONDS,
+                queue,
+                (q, task) -> q.put(task));
+
+        for(int i = 0; i < OrderedTask.TOTAL; ++ i){
+            threadPool.execute(new OrderedTask(i));
+        }
+        log.debug("提交完毕，内存 + 磁盘共 {} 个任务", queue.getSize());
+        OrderedTask.LATCH.await();
+        log.debug("执行完毕，写入磁盘 {} 个，乱序 {} 个", queue.getSpilledCount(), OrderedTask.OUT_OF_ORDER.get());
+        threadPool.shutdown();
+        queue.close();
+
+        // 2. 实现了 Serializable 却捕获了不可序列化的对象：只有这个任务被拒绝，前后的任务照常写入磁盘
+        SpillBlockQueue<Runnable> small = new SpillBlockQueue<>(2, Files.createTempDirectory("spill"), 1 << 20, 4, false);
+        Object notSerializable = new Object();
+        Runnable bad = (Runnable & Serializable) () -> log.debug("不会执行 {}", notSerializable);
+        RejectPolicy<Runnable> logReject = (q, task) -> log.debug("拒绝不能写入磁盘的任务 {}", task);
+        for (int i = 0; i < 10; i++) {
+            small.tryPut(logReject, serializableTask(i));
+            if(i == 4){
+                small.tryPut(logReject, bad);
+            }
+        }
+        log.debug("队列中 {} 个任务，写入磁盘 {} 个", small.getSize(), small.getSpilledCount());
+        Runnable task;
+        while((task = small.poll(0, TimeUnit.NANOSECONDS)) != null){
+            task.run();
+        }
+        small.close();
+    }
+
+    // 只捕获 int 的 lambda 可以序列化
+    static Runnable serializableTask(int id){
+        return (Runnable & Serializable) () -> log.debug("执行任务 {}", id);
+    }
+
+    // 可以序列化的任务，捕获的状态都放在字段里
+    static class OrderedTask implements Runnable, Serializable {
+        static final int TOTAL = 5000;
+        static final CountDownLatch LATCH = new CountDownLatch(TOTAL);
+        static final AtomicInteger NEXT = new AtomicInteger();
+        static final AtomicInteger OUT_OF_ORDER = new AtomicInteger();
+
+        private final int id;
+
+        OrderedTask(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            if(NEXT.getAndIncrement() != id){
+                OUT_OF_ORDER.incrementAndGet();
+            }
+            LATCH.countDown();
+        }
+
+        @Override
+        public String toString() {
+            return "OrderedTask(" + id + ")";
+        }
+    }
+}
+
+/**
+ * 内存放不下时把任务写到磁盘的阻塞队列
+ * 内存部分满了以后，可序列化的任务先攒在暂存区，攒够一批再一次写入内存映射的日志文件；
+ * 出队后内存有空位时从日志按顺序读回，日志读完了再从暂存区取，整体保持先进先出
+ * 不可序列化的任务（包括开启监控后被 TimedTask 包装的任务）不能写入磁盘，内存满时和 BlockQueue 一样等待或走拒绝策略，
+ * 它们会越过已经写到磁盘上的任务
+ * 任务在进入暂存区时就序列化，序列化失败（例如捕获了不可序列化的对象）或者超过段大小的任务也按不可序列化处理，
+ * 只影响提交它的线程，暂存区里都是已经序列化好的任务，写日志不会因为某个任务失败一半
+ */
+@Slf4j(topic = "c.SpillBlockQueue")
+class SpillBlockQueue<T> implements TaskQueue<T>, Closeable {
+    // 1. 内存中的任务，出队总是从这里取
+    private final Deque<T> memory = new ArrayDeque<>();
+
+    // 2. 还没有写入日志的任务和序列化结果，排在日志之后
+    private final Deque<Staged<T>> staging = new ArrayDeque<>();
+
+    // 3. 磁盘日志
+    private final MappedJournal journal;
+
+    // 4. 锁
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // 5. 生产者条件变量，只有不可序列化的任务会等待
+    private final Condition fullWaitSet = lock.newCondition();
+
+    // 6. 消费者条件变量
+    private final Condition emptyWaitSet = lock.newCondition();
+
+    // 7. 内存容量
+    private final int capacity;
+
+    // 8. 暂存区攒够多少个任务写一次日志
+    private final int spillBatchSize;
+
+    private long spilled;
+
+    private record Staged<T>(T task, byte[] bytes) {
+    }
+
+    public SpillBlockQueue(int capacity, Path dir) {
+        this(capacity, dir, 64 << 20, 64, false);
+    }
+
+    public SpillBlockQueue(int capacity, Path dir, int segmentSize, int spillBatchSize, boolean fsync) {
+        if(capacity <= 0 || spillBatchSize <= 0){
+            throw new IllegalArgumentException("capacity=" + capacity + ", spillBatchSize=" + spillBatchSize);
+        }
+        this.capacity = capacity;
+        this.spillBatchSize = spillBatchSize;
+        this.journal = new MappedJournal(dir, segmentSize, fsync);
+    }
+
+    // 调用方持有锁；返回 false 表示任务不可序列化并且内存已满
+    private boolean enqueue(T task){
+        if(journal.isEmpty() && staging.isEmpty() && memory.size() < capacity){
+            memory.addLast(task);
+        }else if(task instanceof Serializable && stage(task)){
+            if(staging.size() >= spillBatchSize){
+                spill();
+            }
+        }else if(memory.size() < capacity){
+            memory.addLast(task);
+        }else{
+            return false;
+        }
+        emptyWaitSet.signal();
+        return true;
+    }
+
+    // 先序列化再放入暂存区，失败时返回 false，任务按不可序列化处理
+    private boolean stage(T task){
+        byte[] bytes;
+        try {
+            bytes = MappedJournal.serialize(task);
+        } catch (UncheckedIOException e) {
+            log.debug("任务 {} 序列化失败 {}", task, e.getCause().toString());
+            return false;
+        }
+        if(!journal.fits(bytes.length)){
+            log.debug("任务 {} 序列化后 {} 字节，超过段大小", task, bytes.length);
+            return false;
+        }
+        staging.addLast(new Staged<>(task, bytes));
+        return true;
+    }
+
+    // 调用方持有锁，暂存区整批写入日志；写入失败时日志回滚，暂存区保持不变
+    private void spill(){
+        int n = staging.size();
+        List<byte[]> records = new ArrayList<>(n);
+        for (Staged<T> staged : staging) {
+            records.add(staged.bytes());
+        }
+        journal.append(records);
+        staging.clear();
+        spilled += n;
+        log.debug("写入磁盘 {} 个任务，磁盘上共 {} 个", n, journal.size());
+    }
+
+    // 调用方持有锁并保证有任务，出队后用日志和暂存区补齐内存
+    private T dequeue(){
+        if(memory.isEmpty()){
+            // 内存里的任务都被移除了，但后面还有任务
+            refill();
+        }
+        T t = memory.removeFirst();
+        refill();
+        fullWaitSet.signal();
+        return t;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void refill(){
+        while(memory.size() < capacity){
+            if(!journal.isEmpty()){
+                memory.addLast((T) journal.read());
+            }else if(!staging.isEmpty()){
+                memory.addLast(staging.removeFirst().task());
+            }else{
+                return;
+            }
+        }
+    }
+
+    private int count(){
+        return (int) Math.min(Integer.MAX_VALUE, memory.size() + staging.size() + journal.size());
+    }
+
+    @Override
+    public T poll(long timeout, TimeUnit unit) {
+        lock.lock();
+        try {
+            long nanos = unit.toNanos(timeout);
+            while(count() == 0){
+                try{
+                    if(nanos <= 0){
+                        return null;
+                    }
+                    nanos = emptyWaitSet.awaitNanos(nanos);
+                }catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T take() {
+        lock.lock();
+        try {
+            while(count() == 0){
+                try{
+                    emptyWaitSet.await();
+                }catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(T task) {
+        lock.lock();
+        try {
+            while(!enqueue(task)){
+                try{
+                    log.debug("等待加入任务队列 {}", task);
+                    fullWaitSet.await();
+                }catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(T task, long timeout, TimeUnit timeUnit) {
+        lock.lock();
+        try {
+            long nanos = timeUnit.toNanos(timeout);
+            while(!enqueue(task)){
+                try{
+                    if(nanos <= 0){
+                        return false;
+                    }
+                    log.debug("等待加入任务队列 {}", task);
+                    nanos = fullWaitSet.awaitNanos(nanos);
+                }catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getSize() {
+        lock.lock();
+        try {
+            return count();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void tryPut(RejectPolicy<T> rejectPolicy, T task) {
+        lock.lock();
+        try {
+            if(!enqueue(task)){
+                rejectPolicy.reject(this, task);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 一次加锁放入一批任务，写入磁盘的部分同样按批次写
+    @Override
+    public int offerAll(List<? extends T> tasks) {
+        lock.lock();
+        try {
+            int n = 0;
+            for (T task : tasks) {
+                if(!enqueue(task)){
+                    break;
+                }
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> collection, int maxElements) {
+        lock.lock();
+        try {
+            int n = 0;
+            while(n < maxElements && count() > 0){
+                collection.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 只移除内存和暂存区里的任务，已经写入磁盘的任务读回内存之前不能移除
+    @Override
+    public boolean removeIf(Predicate<? super T> filter) {
+        lock.lock();
+        try {
+            boolean removed = memory.removeIf(filter) | staging.removeIf(staged -> filter.test(staged.task()));
+            if(removed){
+                refill();
+                fullWaitSet.signalAll();
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 写入过磁盘的任务总数
+    public long getSpilledCount(){
+        lock.lock();
+        try {
+            return spilled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 删除日志文件，磁盘上还没读回的任务会丢失
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            journal.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+/**
+ * 分段的内存映射日志，每条记录是 [长度][序列化后的对象]
+ * 只在进程内使用，读写位置保存在内存里，不做崩溃恢复；
+ * 读完的段重置后留作备用，下次需要新段时直接复用，不用重新创建和映射文件
+ * 调用方负责同步
+ */
+@Slf4j(topic = "c.MappedJournal")
+class MappedJournal implements Closeable {
+    // 最多保留几个读完的段备用，多出来的删除
+    private static final int MAX_SPARE_SEGMENTS = 2;
+
+    private final Path dir;
+    private final int segmentSize;
+    // 每批写完是否刷盘
+    private final boolean fsync;
+
+    // 第一个是正在读的段，最后一个是正在写的段
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final Deque<Segment> spare = new ArrayDeque<>();
+
+    private long count;
+    private int nextId;
+
+    MappedJournal(Path dir, int segmentSize, boolean fsync) {
+        if(segmentSize <= Integer.BYTES){
+            throw new IllegalArgumentException("segmentSize=" + segmentSize);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+    }
+
+    boolean isEmpty(){
+        return count == 0;
+    }
+
+    long size(){
+        return count;
+    }
+
+    // 一条序列化结果能否放进一个段
+    boolean fits(int length){
+        return length <= segmentSize - Integer.BYTES;
+    }
+
+    // 一批序列化好的记录依次追加，最后一次刷盘；中途失败时整批回滚，一条也不算写入
+    void append(List<byte[]> records){
+        for (byte[] bytes : records) {
+            if(!fits(bytes.length)){
+                throw new IllegalArgumentException("任务序列化后 " + bytes.length + " 字节，超过段大小 " + segmentSize);
+            }
+        }
+        Segment first = segments.peekLast();
+        int firstFrom = first == null ? 0 : first.writePos;
+        int segmentCount = segments.size();
+        long countBefore = count;
+        try {
+            for (byte[] bytes : records) {
+                Segment segment = segments.peekLast();
+                if(segment == null || segmentSize - segment.writePos < bytes.length + Integer.BYTES){
+                    if(fsync && segment != null){
+                        segment.force(segment == first ? firstFrom : 0);
+                    }
+                    segment = nextSegment();
+                    segments.addLast(segment);
+                }
+                segment.buffer.putInt(segment.writePos, bytes.length);
+                segment.buffer.put(segment.writePos + Integer.BYTES, bytes);
+                segment.writePos += Integer.BYTES + bytes.length;
+                count++;
+            }
+        } catch (RuntimeException e) {
+            while(segments.size() > segmentCount){
+                recycle(segments.removeLast());
+            }
+            if(first != null){
+                first.writePos = firstFrom;
+            }
+            count = countBefore;
+            throw e;
+        }
+        Segment last = segments.peekLast();
+        if(fsync && last != null){
+            last.force(last == first ? firstFrom : 0);
+        }
+    }
+
+    // 读出最早的一条记录，调用方保证日志不为空
+    Object read(){
+        Segment segment = segments.peekFirst();
+        int length = segment.buffer.getInt(segment.readPos);
+        byte[] bytes = new byte[length];
+        segment.buffer.get(segment.readPos + Integer.BYTES, bytes);
+        segment.readPos += Integer.BYTES + length;
+        count--;
+        if(segment.readPos == segment.writePos){
+            if(segments.size() > 1){
+                segments.removeFirst();
+                recycle(segment);
+            }else{
+                // 唯一的段读完了，从头开始写
+                segment.readPos = segment.writePos = 0;
+            }
+        }
+        return deserialize(bytes);
+    }
+
+    private Segment nextSegment(){
+        Segment segment = spare.pollFirst();
+        if(segment != null){
+            return segment;
+        }
+        Path path = dir.resolve("spill-" + (nextId++) + ".seg");
+        try {
+            FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            log.debug("新建日志段 {}", path);
+            return new Segment(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void recycle(Segment segment){
+        segment.readPos = segment.writePos = 0;
+        if(spare.size() < MAX_SPARE_SEGMENTS){
+            spare.addLast(segment);
+        }else{
+            segment.delete();
+        }
+    }
+
+    static byte[] serialize(Object o){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(o);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes){
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Segment segment : segments) {
+            segment.delete();
+        }
+        for (Segment segment : spare) {
+            segment.delete();
+        }
+        segments.clear();
+        spare.clear();
+        count = 0;
+    }
+
+    private static final class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int readPos;
+        private int writePos;
+
+        Segment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        // 把 [from, writePos) 写回磁盘
+        void force(int from){
+            if(writePos > from){
+                buffer.force(from, writePos - from);
+            }
+        }
+
+        // 映射在 buffer 被回收之前仍然有效，这里只关闭通道、删除文件
+        void delete(){
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+
+@Slf4j(topic = "c.d14_hill_climbing")
+public class d14_hill_climbing {
+    public static void main(String[] args) throws InterruptedException {
+        ThreadPool threadPool = new ThreadPool(
+                2,
+                200, TimeUnit.MILLISECONDS,
+                1000,
+                (queue, task) -> queue.put(task));
+        // 采样任务很轻，直接在时间轮线程上执行
+        HashedWheelTimer timer = new HashedWheelTimer(Runnable::run, 10, TimeUnit.MILLISECONDS);
+        HillClimbingController controller = new HillClimbingController(threadPool, 1, 32, 200, TimeUnit.MILLISECONDS);
+        controller.start(timer);
+
+        // 阶段 1：阻塞型任务，线程越多吞吐越高
+        submitFor(threadPool, 4000, () -> sleep(5));
+        log.debug("阻塞阶段结束，核心线程数 {}", threadPool.getCoreSize());
+        // 阶段 2：CPU 型任务，超过 CPU 核数以后加线程没有收益
+        submitFor(threadPool, 4000, () -> spin(1_000_000));
+        log.debug("CPU 阶段结束，核心线程数 {}", threadPool.getCoreSize());
+
+        controller.stop();
+        timer.stop();
+        threadPool.shutdown();
+    }
+
+    private static void submitFor(ThreadPool threadPool, long millis, Runnable task){
+        long end = System.currentTimeMillis() + millis;
+        while(System.currentTimeMillis() < end){
+            threadPool.execute(task);
+        }
+    }
+
+    private static void sleep(long millis){
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static long spin(long nanos){
+        long end = System.nanoTime() + nanos;
+        long x = 0;
+        while(System.nanoTime() < end){
+            x++;
+        }
+        return x;
+    }
+}
+
+/**
+ * 爬山法调整 ThreadPool 的核心线程数
+ * 每个采样周期计算完成任务的吞吐：
+ * 1. 队列为空说明线程够用，吞吐由提交速度决定，不能用来判断线程数的好坏；连续几个周期都为空时减少一个线程
+ * 2. 队列有积压时做爬山：上一步调整后吞吐明显提升就继续同方向走一步，明显下降就退回去；
+ *    加了线程吞吐没有变化说明瓶颈不在线程数，同样退回去；退回后下一次向相反方向试探，
+ *    减少线程吞吐不变就保留减少后的线程数继续向下试探，负载变成 CPU 型后线程数能降下来
+ * 防止来回震荡：每次只调整 1 个线程；吞吐变化小于 tolerance 视为噪声；调整后等待 settle 个周期再测量，
+ * 退回后保持 hold 个周期不动；线程数始终在 [minWorkers, maxWorkers] 之间
+ * 每次决策都会打一条 debug 日志
+ */
+@Slf4j(topic = "c.HillClimbingController")
+class HillClimbingController implements Runnable {
+    private final ThreadPool pool;
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final long intervalNanos;
+
+    // 吞吐相对变化小于这个比例视为噪声
+    private final double tolerance;
+    // 调整后丢弃的采样周期数，新线程启动、队列重新分配期间的吞吐不准
+    private final int settleIntervals;
+    // 退回后保持不动的周期数
+    private final int holdIntervals;
+    // 队列连续为空多少个周期后减少线程
+    private final int idleIntervals;
+
+    // 以下状态只在采样线程里访问
+    private long lastTime;
+    private long lastCompleted;
+    // 上一次调整之前的线程数和吞吐，lastTarget < 0 表示还没有可以比较的基准
+    private int lastTarget = -1;
+    private double lastThroughput;
+    // 没有基准时试探的方向，退回时翻转，否则积压时只会一直向增加线程的方向试探
+    private int probeDirection = 1;
+    private int skip;
+    private int idle;
+
+    private volatile HashedWheelTimer.Timeout timeout;
+
+    public HillClimbingController(ThreadPool pool, int minWorkers, int maxWorkers, long interval, TimeUnit unit) {
+        this(pool, minWorkers, maxWorkers, interval, unit, 0.1, 1, 4, 3);
+    }
+
+    public HillClimbingController(ThreadPool pool, int minWorkers, int maxWorkers, long interval, TimeUnit unit,
+                                  double tolerance, int settleIntervals, int holdIntervals, int idleIntervals) {
+        if(minWorkers <= 0 || maxWorkers < minWorkers){
+            throw new IllegalArgumentException("minWorkers=" + minWorkers + ", maxWorkers=" + maxWorkers);
+        }
+        this.pool = pool;
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+        this.intervalNanos = unit.toNanos(interval);
+        this.tolerance = tolerance;
+        this.settleIntervals = settleIntervals;
+        this.holdIntervals = holdIntervals;
+        this.idleIntervals = idleIntervals;
+    }
+
+    // 用时间轮定期采样，时间轮的 executor 最好不是被调整的线程池本身，否则线程池满载时采样会被推迟
+    public void start(HashedWheelTimer timer){
+        lastTime = System.nanoTime();
+        lastCompleted = pool.getCompletedTaskCount();
+        int target = clamp(pool.getCoreSize());
+        if(target != pool.getCoreSize()){
+            log.debug("核心线程数 {} 超出范围，调整为 {}", pool.getCoreSize(), target);
+            pool.setCoreSize(target);
+        }
+        timeout = timer.scheduleAtFixedRate(this, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void stop(){
+        HashedWheelTimer.Timeout t = timeout;
+        if(t != null){
+            t.cancel();
+        }
+    }
+
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        long completed = pool.getCompletedTaskCount();
+        double throughput = (completed - lastCompleted) * 1e9 / Math.max(1, now - lastTime);
+        lastTime = now;
+        lastCompleted = completed;
+        int queued = pool.getQueueSize();
+        int target = pool.getCoreSize();
+
+        if(skip > 0){
+            skip--;
+            log.debug("吞吐 {}/s，队列 {}，线程数 {} 保持：等待稳定", (long) throughput, queued, target);
+            return;
+        }
+        if(queued == 0){
+            // 吞吐受提交速度限制，和线程数无关，作废比较基准
+            lastTarget = -1;
+            if(++idle >= idleIntervals && target > minWorkers){
+                idle = 0;
+                apply(target, target - 1, throughput, queued, "队列持续为空，减少线程");
+            }else{
+                log.debug("吞吐 {}/s，队列 0，线程数 {} 保持：线程够用", (long) throughput, target);
+            }
+            return;
+        }
+        idle = 0;
+        if(lastTarget < 0 || lastTarget == target){
+            // 没有基准，按 probeDirection 试探一步
+            lastTarget = target;
+            lastThroughput = throughput;
+            apply(target, target + probeDirection, throughput, queued,
+                    probeDirection > 0 ? "队列积压，试探增加线程" : "队列积压，试探减少线程");
+            return;
+        }
+        int direction = Integer.signum(target - lastTarget);
+        double change = (throughput - lastThroughput) / Math.max(1, lastThroughput);
+        int previous = lastTarget;
+        lastTarget = target;
+        lastThroughput = throughput;
+        if(change > tolerance){
+            probeDirection = direction;
+            apply(target, target + direction, throughput, queued,
+                    String.format("吞吐提升 %.0f%%，继续%s", change * 100, direction > 0 ? "增加" : "减少"));
+        }else if(change < -tolerance){
+            // 这个方向变差了，下次向反方向试探
+            probeDirection = -direction;
+            skip = holdIntervals;
+            apply(target, previous, throughput, queued, String.format("吞吐下降 %.0f%%，退回", -change * 100));
+            lastTarget = -1;
+        }else if(direction > 0){
+            // 加线程没有收益，可能已经是 CPU 型负载，下次试探减少线程
+            probeDirection = -1;
+            skip = holdIntervals;
+            apply(target, previous, throughput, queued, "增加线程没有收益，退回");
+            lastTarget = -1;
+        }else{
+            // 少一个线程吞吐不变，保留减少后的线程数，以它为基准继续向下试探
+            probeDirection = -1;
+            lastTarget = -1;
+            log.debug("吞吐 {}/s，队列 {}，线程数 {} 保持：减少线程没有影响", (long) throughput, queued, target);
+        }
+    }
+
+    private void apply(int target, int next, double throughput, int queued, String reason){
+        int requested = next;
+        next = clamp(next);
+        if(next == target){
+            lastTarget = -1;
+            // 到了边界，下次向另一边试探
+            probeDirection = requested > target ? -1 : 1;
+            log.debug("吞吐 {}/s，队列 {}，线程数 {} 保持：{}，已到边界", (long) throughput, queued, target, reason);
+            return;
+        }
+        log.debug("吞吐 {}/s，队列 {}，线程数 {} -> {}：{}", (long) throughput, queued, target, next, reason);
+        pool.setCoreSize(next);
+        skip = Math.max(skip, settleIntervals);
+    }
+
+    private int clamp(int n){
+        return Math.max(minWorkers, Math.min(maxWorkers, n));
+    }
+}
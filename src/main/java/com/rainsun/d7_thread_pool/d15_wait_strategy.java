@@ -0,0 +1,135 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+@Slf4j(topic = "c.d15_wait_strategy")
+public class d15_wait_strategy {
+    public static void main(String[] args) throws InterruptedException {
+        handoff("blocking", WaitStrategy.BLOCKING);
+        handoff("spin-yield-park", new SpinYieldParkWaitStrategy(1000, 100));
+        handoff("timed-park 50us", new TimedParkWaitStrategy(50, TimeUnit.MICROSECONDS));
+        handoff("busy-spin", new BusySpinWaitStrategy());
+    }
+
+    // 每隔 200us 提交一个任务，worker 每次都处在等待状态，统计从提交到开始执行的延迟
+    private static void handoff(String name, WaitStrategy waitStrategy) throws InterruptedException {
+        ThreadPool threadPool = new ThreadPool(
+                1,
+                100, TimeUnit.MILLISECONDS,
+                new RingBlockQueue<>(16),
+                (queue, task) -> queue.put(task));
+        threadPool.setWaitStrategy(waitStrategy);
+        threadPool.prestartCoreWorkers();
+
+        int n = 2000;
+        LatencyHistogram latency = new LatencyHistogram();
+        CountDownLatch latch = new CountDownLatch(n);
+        for(int i = 0; i < n; ++ i){
+            long submitted = System.nanoTime();
+            threadPool.execute(() -> {
+                latency.record(System.nanoTime() - submitted);
+                latch.countDown();
+            });
+            LockSupport.parkNanos(200_000);
+        }
+        latch.await();
+        log.debug("{}: {}", name, latency.snapshot());
+        threadPool.shutdown();
+    }
+}
+
+/**
+ * worker 等待任务的方式
+ * 阻塞等待省 CPU，但每次交接都要经过 park / unpark，唤醒延迟在几十微秒；
+ * 先自旋一会儿再阻塞，任务很快到来时可以省掉这次唤醒，代价是自旋期间占着 CPU
+ */
+interface WaitStrategy {
+    // 直接阻塞在任务队列上，由生产者唤醒
+    WaitStrategy BLOCKING = TaskQueue::poll;
+
+    // 从队列获取任务，最多等待 timeout，超时返回 null
+    <T> T poll(TaskQueue<T> queue, long timeout, TimeUnit unit);
+}
+
+/**
+ * 一直自旋，延迟最低，每个等待的 worker 占满一个 CPU 核
+ * 只适合 worker 数不超过空闲核数的场景；超时仍然有效，救急线程照常回收
+ */
+class BusySpinWaitStrategy implements WaitStrategy {
+    @Override
+    public <T> T poll(TaskQueue<T> queue, long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        T t;
+        while((t = queue.tryPoll()) == null){
+            if(System.nanoTime() - deadline >= 0){
+                return null;
+            }
+            Thread.onSpinWait();
+        }
+        return t;
+    }
+}
+
+/**
+ * 先自旋 spins 次，再让出 CPU yields 次，还没有任务就阻塞在队列上
+ * 任务间隔短时在自旋阶段就能拿到，间隔长时很快进入阻塞，不会一直占着 CPU
+ */
+class SpinYieldParkWaitStrategy implements WaitStrategy {
+    private final int spins;
+    private final int yields;
+
+    public SpinYieldParkWaitStrategy(int spins, int yields) {
+        this.spins = spins;
+        this.yields = yields;
+    }
+
+    @Override
+    public <T> T poll(TaskQueue<T> queue, long timeout, TimeUnit unit) {
+        long start = System.nanoTime();
+        long nanos = unit.toNanos(timeout);
+        T t;
+        for (int i = 0; i < spins; i++) {
+            if((t = queue.tryPoll()) != null){
+                return t;
+            }
+            Thread.onSpinWait();
+        }
+        for (int i = 0; i < yields; i++) {
+            if((t = queue.tryPoll()) != null){
+                return t;
+            }
+            Thread.yield();
+        }
+        return queue.poll(nanos - (System.nanoTime() - start), TimeUnit.NANOSECONDS);
+    }
+}
+
+/**
+ * 没有任务时 park 固定的时间再检查，不依赖生产者唤醒
+ * 延迟上限是 park 的时长，CPU 占用比自旋低得多；park 的实际精度受操作系统定时器影响
+ */
+class TimedParkWaitStrategy implements WaitStrategy {
+    private final long parkNanos;
+
+    public TimedParkWaitStrategy(long park, TimeUnit unit) {
+        this.parkNanos = unit.toNanos(park);
+    }
+
+    @Override
+    public <T> T poll(TaskQueue<T> queue, long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        T t;
+        while((t = queue.tryPoll()) == null){
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0){
+                return null;
+            }
+            LockSupport.parkNanos(this, Math.min(parkNanos, remaining));
+        }
+        return t;
+    }
+}
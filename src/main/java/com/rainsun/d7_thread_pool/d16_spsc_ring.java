@@ -0,0 +1,181 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.function.Consumer;
+
+@Slf4j(topic = "c.d16_spsc_ring")
+public class d16_spsc_ring {
+    public static void main(String[] args) throws InterruptedException {
+        SpscRingBuffer<Integer> ring = new SpscRingBuffer<>(1024);
+        int n = 10_000_000;
+
+        Thread producer = new Thread(() -> {
+            Integer[] batch = new Integer[64];
+            int next = 0;
+            while(next < n){
+                int len = Math.min(batch.length, n - next);
+                for (int i = 0; i < len; i++) {
+                    batch[i] = next + i;
+                }
+                // 一批只发布一次 tail
+                int offered = 0;
+                while(offered < len){
+                    int k = ring.offer(batch, offered, len - offered);
+                    if(k == 0){
+                        // 满了让出 CPU，核数少的机器上自旋会占住消费者需要的时间片
+                        Thread.yield();
+                    }
+                    offered += k;
+                }
+                next += len;
+            }
+        }, "producer");
+
+        long[] state = new long[2];
+        Consumer<Integer> check = e -> {
+            if(e != state[0]){
+                state[1]++;
+            }
+            state[0]++;
+        };
+        long start = System.nanoTime();
+        producer.start();
+        while(state[0] < n){
+            if(ring.drain(check, 256) == 0){
+                Thread.yield();
+            }
+        }
+        long cost = System.nanoTime() - start;
+        producer.join();
+        log.debug("传递 {} 个，乱序 {} 个，耗时 {}ms，{} 个/us", n, state[1], cost / 1000_000, n * 1000L / cost);
+    }
+}
+
+/**
+ * 单生产者单消费者的有界环形缓冲区
+ * 只有一个线程写 tail、一个线程写 head，不需要 CAS 也不需要锁：
+ * 生产者先写槽位，再用 lazySet（release 写）发布 tail，消费者读到新的 tail 时一定能看到槽位里的元素，反过来同理
+ * 每一方都缓存对方的下标，只有按缓存看已经满 / 空时才去读对方的 volatile 下标，减少缓存行在两个核之间来回传递
+ * 批量 offer / drain 一批只发布一次下标
+ * 容量向上取整为 2 的幂，用位运算取槽位；offer / poll 只能分别由同一个线程调用
+ */
+class SpscRingBuffer<T> {
+    private final Object[] buffer;
+    private final int mask;
+
+    // 生产者写 tail，cached 里是它上次看到的 head
+    private final Cursor tail = new Cursor();
+
+    // 消费者写 head，cached 里是它上次看到的 tail
+    private final Cursor head = new Cursor();
+
+    public SpscRingBuffer(int capacity) {
+        if(capacity <= 0 || capacity > (1 << 30)){
+            throw new IllegalArgumentException("capacity=" + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity){
+            size <<= 1;
+        }
+        this.buffer = new Object[size];
+        this.mask = size - 1;
+    }
+
+    public int capacity(){
+        return buffer.length;
+    }
+
+    // 只能由生产者线程调用，满了返回 false
+    public boolean offer(T e){
+        if(e == null){
+            throw new NullPointerException();
+        }
+        long t = tail.getPlain();
+        if(t - tail.cached >= buffer.length){
+            tail.cached = head.get();
+            if(t - tail.cached >= buffer.length){
+                return false;
+            }
+        }
+        buffer[(int) t & mask] = e;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // 放入 items[from, from + length) 中能放下的前缀，返回放入的个数，只发布一次 tail
+    public int offer(T[] items, int from, int length){
+        long t = tail.getPlain();
+        long free = buffer.length - (t - tail.cached);
+        if(free < length){
+            tail.cached = head.get();
+            free = buffer.length - (t - tail.cached);
+        }
+        int n = (int) Math.min(free, length);
+        for (int i = 0; i < n; i++) {
+            T e = items[from + i];
+            if(e == null){
+                throw new NullPointerException("items[" + (from + i) + "]");
+            }
+            buffer[(int) (t + i) & mask] = e;
+        }
+        if(n > 0){
+            tail.lazySet(t + n);
+        }
+        return n;
+    }
+
+    // 只能由消费者线程调用，空的时候返回 null
+    @SuppressWarnings("unchecked")
+    public T poll(){
+        long h = head.getPlain();
+        if(h >= head.cached){
+            head.cached = tail.get();
+            if(h >= head.cached){
+                return null;
+            }
+        }
+        int index = (int) h & mask;
+        T e = (T) buffer[index];
+        buffer[index] = null;
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    // 最多取出 limit 个交给 consumer，返回取出的个数，只发布一次 head
+    @SuppressWarnings("unchecked")
+    public int drain(Consumer<? super T> consumer, int limit){
+        long h = head.getPlain();
+        long available = head.cached - h;
+        if(available < limit){
+            head.cached = tail.get();
+            available = head.cached - h;
+        }
+        int n = (int) Math.min(available, limit);
+        for (int i = 0; i < n; i++) {
+            int index = (int) (h + i) & mask;
+            T e = (T) buffer[index];
+            buffer[index] = null;
+            consumer.accept(e);
+        }
+        if(n > 0){
+            head.lazySet(h + n);
+        }
+        return n;
+    }
+
+    // 任意线程都可以调用，并发时只是一个近似值
+    public int size(){
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.max(0, Math.min(buffer.length, t - h));
+    }
+
+    // 下标和对方下标的本地缓存，前面的填充来自 PaddedAtomicLong，后面再补一段
+    @SuppressWarnings("unused")
+    private static final class Cursor extends PaddedAtomicLong {
+        // 只由拥有这个下标的线程读写
+        long cached;
+        private long q1, q2, q3, q4, q5, q6, q7;
+    }
+}
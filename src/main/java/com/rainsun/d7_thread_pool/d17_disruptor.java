@@ -0,0 +1,575 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+
+@Slf4j(topic = "c.d17_disruptor")
+public class d17_disruptor {
+    // 事件对象预先分配在环里，处理时只改字段
+    static class ValueEvent {
+        long value;
+        long doubled;
+        long squared;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Pipeline<ValueEvent> pipeline = new Pipeline<>(ValueEvent::new, 1024, false, SequenceWaitStrategy.blocking());
+        long[] sum = new long[1];
+        // 菱形依赖：校验 -> (翻倍, 平方) 并行 -> 汇总
+        Pipeline<ValueEvent>.Stage validate = pipeline.handleEventsWith((e, seq, end) -> {
+            if(e.value < 0){
+                throw new IllegalArgumentException("value=" + e.value);
+            }
+        });
+        Pipeline<ValueEvent>.Stage fanOut = validate.then(
+                (e, seq, end) -> e.doubled = e.value * 2,
+                (e, seq, end) -> e.squared = e.value * e.value);
+        pipeline.after(fanOut).then((e, seq, end) -> sum[0] += e.doubled + e.squared);
+        pipeline.start();
+
+        int n = 1_000_000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for(int i = 0; i < n; ++ i){
+            // 不捕获变量的 lambda 只有一个实例，发布事件不分配对象
+            pipeline.publishEvent((e, v) -> e.value = v, i);
+        }
+        pipeline.shutdown();
+        long cost = System.nanoTime() - start;
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+
+        long expected = 0;
+        for (long i = 0; i < n; i++) {
+            expected += i * 2 + i * i;
+        }
+        log.debug("处理 {} 个事件，耗时 {}ms，结果{}，生产者分配 {} 字节",
+                n, cost / 1000_000, sum[0] == expected ? "正确" : "错误", allocated);
+    }
+}
+
+// 序号，初始值 -1，前后填充避免伪共享
+class Sequence extends PaddedAtomicLong {
+    Sequence() {
+        super(-1);
+    }
+
+    static long minimum(Sequence[] sequences, long min){
+        for (Sequence sequence : sequences) {
+            min = Math.min(min, sequence.get());
+        }
+        return min;
+    }
+}
+
+// 处理事件，endOfBatch 表示这是本批最后一个，适合在这里做批量刷新
+@FunctionalInterface
+interface EventHandler<E> {
+    void onEvent(E event, long sequence, boolean endOfBatch) throws Exception;
+}
+
+/**
+ * 预先分配事件对象的环形缓冲区
+ * 生产者先申请序号，再填充对应槽位里的事件，最后发布；环里的对象一直复用，稳态下不分配内存
+ * 生产者不能超过最慢的末端消费者一圈（gating sequences）
+ * 单生产者直接递增序号；多生产者 CAS 申请序号，每个槽位再记录一个"圈数"表示是否已经发布，
+ * 因为多个生产者的发布顺序和申请顺序不一定相同
+ */
+class RingBuffer<E> {
+    private final Object[] entries;
+    private final int mask;
+    private final int indexShift;
+    private final int bufferSize;
+    private final boolean multiProducer;
+    private final SequenceWaitStrategy waitStrategy;
+
+    // 单生产者：已经发布的最大序号；多生产者：已经申请的最大序号，是否发布要看 available
+    final Sequence cursor = new Sequence();
+
+    // 末端消费者的序号
+    private volatile Sequence[] gatingSequences = new Sequence[0];
+
+    // 单生产者专用，只有生产者线程访问
+    private long nextValue = -1;
+    private long cachedGating = -1;
+
+    // 多生产者专用
+    private final Sequence gatingCache = new Sequence();
+    private final AtomicIntegerArray available;
+
+    RingBuffer(Supplier<E> factory, int bufferSize, boolean multiProducer, SequenceWaitStrategy waitStrategy) {
+        if(bufferSize <= 0 || Integer.bitCount(bufferSize) != 1){
+            throw new IllegalArgumentException("bufferSize 必须是 2 的幂: " + bufferSize);
+        }
+        this.entries = new Object[bufferSize];
+        for (int i = 0; i < bufferSize; i++) {
+            entries[i] = factory.get();
+        }
+        this.bufferSize = bufferSize;
+        this.mask = bufferSize - 1;
+        this.indexShift = Integer.numberOfTrailingZeros(bufferSize);
+        this.multiProducer = multiProducer;
+        this.waitStrategy = waitStrategy;
+        this.available = multiProducer ? new AtomicIntegerArray(bufferSize) : null;
+        if(multiProducer){
+            for (int i = 0; i < bufferSize; i++) {
+                available.set(i, -1);
+            }
+        }
+    }
+
+    void setGatingSequences(Sequence[] sequences){
+        this.gatingSequences = sequences;
+    }
+
+    int getBufferSize(){
+        return bufferSize;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(long sequence){
+        return (E) entries[(int) sequence & mask];
+    }
+
+    public long next(){
+        return next(1);
+    }
+
+    // 申请 n 个连续序号，返回最后一个；环满时自旋等待最慢的消费者
+    public long next(int n){
+        if(n < 1 || n > bufferSize){
+            throw new IllegalArgumentException("n=" + n);
+        }
+        return multiProducer ? nextMulti(n) : nextSingle(n);
+    }
+
+    private long nextSingle(int n){
+        long next = nextValue + n;
+        long wrapPoint = next - bufferSize;
+        if(wrapPoint > cachedGating){
+            long min;
+            while(wrapPoint > (min = Sequence.minimum(gatingSequences, nextValue))){
+                LockSupport.parkNanos(1);
+            }
+            cachedGating = min;
+        }
+        nextValue = next;
+        return next;
+    }
+
+    private long nextMulti(int n){
+        while(true){
+            long current = cursor.get();
+            long next = current + n;
+            long wrapPoint = next - bufferSize;
+            long cached = gatingCache.get();
+            if(wrapPoint > cached || cached > current){
+                long min = Sequence.minimum(gatingSequences, current);
+                if(wrapPoint > min){
+                    LockSupport.parkNanos(1);
+                    continue;
+                }
+                gatingCache.set(min);
+            }else if(cursor.compareAndSet(current, next)){
+                return next;
+            }
+        }
+    }
+
+    public void publish(long sequence){
+        publish(sequence, sequence);
+    }
+
+    // 发布 [lo, hi]
+    public void publish(long lo, long hi){
+        if(multiProducer){
+            for (long s = lo; s <= hi; s++) {
+                available.lazySet((int) s & mask, (int) (s >>> indexShift));
+            }
+        }else{
+            // 必须是 volatile 写：阻塞等待策略靠"先写 cursor 再读 signalNeeded"和消费者"先写 signalNeeded 再读 cursor"配对，
+            // lazySet 只有 release 语义，可能排到后面读 signalNeeded 之后，消费者错过唤醒就一直挂起
+            cursor.set(hi);
+        }
+        waitStrategy.signalAllWhenBlocking();
+    }
+
+    // [lo, available] 中从 lo 开始连续发布的最大序号
+    long highestPublished(long lo, long availableSequence){
+        if(!multiProducer){
+            return availableSequence;
+        }
+        for (long s = lo; s <= availableSequence; s++) {
+            if(available.get((int) s & mask) != (int) (s >>> indexShift)){
+                return s - 1;
+            }
+        }
+        return availableSequence;
+    }
+}
+
+/**
+ * 消费者等待的屏障：序号 sequence 的事件既要已经发布，又要被所有前置阶段处理完
+ */
+class SequenceBarrier {
+    private final RingBuffer<?> ring;
+    private final SequenceWaitStrategy waitStrategy;
+    private final Sequence[] dependents;
+    private volatile boolean alerted;
+
+    SequenceBarrier(RingBuffer<?> ring, SequenceWaitStrategy waitStrategy, Sequence[] dependents) {
+        this.ring = ring;
+        this.waitStrategy = waitStrategy;
+        // 第一个阶段直接依赖生产者的 cursor
+        this.dependents = dependents.length == 0 ? new Sequence[]{ring.cursor} : dependents;
+    }
+
+    // 返回可以处理的最大序号，可能大于 sequence，调用方一次处理一批
+    long waitFor(long sequence) throws AlertException {
+        checkAlert();
+        long availableSequence = waitStrategy.waitFor(sequence, ring.cursor, dependents, this);
+        if(availableSequence < sequence){
+            return availableSequence;
+        }
+        return ring.highestPublished(sequence, availableSequence);
+    }
+
+    void alert(){
+        alerted = true;
+        waitStrategy.signalAllWhenBlocking();
+    }
+
+    void checkAlert() throws AlertException {
+        if(alerted){
+            throw AlertException.INSTANCE;
+        }
+    }
+
+    // 用来打断等待中的消费者，不需要堆栈
+    static final class AlertException extends Exception {
+        static final AlertException INSTANCE = new AlertException();
+
+        private AlertException() {
+            super("alert", null, false, false);
+        }
+    }
+}
+
+/**
+ * 消费者等待序号的方式，和 WaitStrategy 一样在延迟和 CPU 占用之间取舍
+ */
+interface SequenceWaitStrategy {
+    // 等到 dependents 的最小值不小于 sequence，返回这个最小值
+    long waitFor(long sequence, Sequence cursor, Sequence[] dependents, SequenceBarrier barrier)
+            throws SequenceBarrier.AlertException;
+
+    // 生产者发布后调用，只有阻塞型的策略需要唤醒
+    default void signalAllWhenBlocking(){
+    }
+
+    // 一直自旋
+    static SequenceWaitStrategy busySpin(){
+        return (sequence, cursor, dependents, barrier) -> {
+            long available;
+            while((available = Sequence.minimum(dependents, Long.MAX_VALUE)) < sequence){
+                barrier.checkAlert();
+                Thread.onSpinWait();
+            }
+            return available;
+        };
+    }
+
+    // 先自旋 spins 次，之后每次检查前让出 CPU
+    static SequenceWaitStrategy yielding(int spins){
+        return (sequence, cursor, dependents, barrier) -> {
+            long available;
+            int counter = spins;
+            while((available = Sequence.minimum(dependents, Long.MAX_VALUE)) < sequence){
+                barrier.checkAlert();
+                if(counter > 0){
+                    counter--;
+                    Thread.onSpinWait();
+                }else{
+                    Thread.yield();
+                }
+            }
+            return available;
+        };
+    }
+
+    // 每次检查前 park 固定时间
+    static SequenceWaitStrategy timedPark(long parkNanos){
+        return (sequence, cursor, dependents, barrier) -> {
+            long available;
+            while((available = Sequence.minimum(dependents, Long.MAX_VALUE)) < sequence){
+                barrier.checkAlert();
+                LockSupport.parkNanos(parkNanos);
+            }
+            return available;
+        };
+    }
+
+    // 阻塞在条件变量上，由生产者唤醒
+    static SequenceWaitStrategy blocking(){
+        return new BlockingSequenceWaitStrategy();
+    }
+}
+
+/**
+ * 生产者还没有发布时阻塞等待；生产者已经发布、只是前置阶段还没处理完时自旋，前置阶段不负责唤醒
+ * 只有确实有消费者在等待时，发布才需要加锁唤醒
+ */
+class BlockingSequenceWaitStrategy implements SequenceWaitStrategy {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition processorNotify = lock.newCondition();
+    private final AtomicBoolean signalNeeded = new AtomicBoolean();
+
+    @Override
+    public long waitFor(long sequence, Sequence cursor, Sequence[] dependents, SequenceBarrier barrier)
+            throws SequenceBarrier.AlertException {
+        if(cursor.get() < sequence){
+            lock.lock();
+            try {
+                do {
+                    signalNeeded.set(true);
+                    if(cursor.get() >= sequence){
+                        break;
+                    }
+                    barrier.checkAlert();
+                    processorNotify.awaitUninterruptibly();
+                } while(cursor.get() < sequence);
+            } finally {
+                lock.unlock();
+            }
+        }
+        long available;
+        while((available = Sequence.minimum(dependents, Long.MAX_VALUE)) < sequence){
+            barrier.checkAlert();
+            Thread.onSpinWait();
+        }
+        return available;
+    }
+
+    @Override
+    public void signalAllWhenBlocking() {
+        if(signalNeeded.getAndSet(false)){
+            lock.lock();
+            try {
+                processorNotify.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
+
+/**
+ * 一个消费者：等屏障放行后一次处理一批事件，处理完再发布自己的序号
+ * 处理过程中抛出的异常只打印，这个事件视为已经处理，不影响后面的事件
+ * 状态 IDLE -> RUNNING -> HALTED，启动前 halt 也有效，之后 run 直接返回
+ */
+@Slf4j(topic = "c.BatchEventProcessor")
+class BatchEventProcessor<E> implements Runnable {
+    final Sequence sequence = new Sequence();
+    private final RingBuffer<E> ring;
+    private final SequenceBarrier barrier;
+    private final EventHandler<? super E> handler;
+    private static final int IDLE = 0;
+    private static final int RUNNING = 1;
+    private static final int HALTED = 2;
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+
+    BatchEventProcessor(RingBuffer<E> ring, SequenceBarrier barrier, EventHandler<? super E> handler) {
+        this.ring = ring;
+        this.barrier = barrier;
+        this.handler = handler;
+    }
+
+    @Override
+    public void run() {
+        if(!state.compareAndSet(IDLE, RUNNING)){
+            if(state.get() == HALTED){
+                // 启动前已经 halt，不能清掉这个信号
+                log.debug("停止 {}", handler);
+                return;
+            }
+            throw new IllegalStateException("已经在运行");
+        }
+        long next = sequence.get() + 1;
+        while(true){
+            try {
+                long available = barrier.waitFor(next);
+                while(next <= available){
+                    handler.onEvent(ring.get(next), next, next == available);
+                    next++;
+                }
+                sequence.lazySet(available);
+            } catch (SequenceBarrier.AlertException e) {
+                if(state.get() == HALTED){
+                    break;
+                }
+            } catch (Throwable e) {
+                e.printStackTrace();
+                sequence.lazySet(next);
+                next++;
+            }
+        }
+        log.debug("停止 {}", handler);
+    }
+
+    void halt(){
+        state.set(HALTED);
+        barrier.alert();
+    }
+}
+
+/**
+ * 多阶段流水线
+ * handleEventsWith 创建第一个阶段，Stage.then 创建依赖它的下一个阶段；同一个阶段传入多个 handler 时它们并行处理同一批事件（扇出），
+ * after 合并多个阶段，之后的阶段要等它们都处理完（菱形依赖）
+ * 每个 handler 独占一个线程，没有被其他阶段依赖的末端 handler 决定生产者能不能覆盖旧的槽位
+ */
+@Slf4j(topic = "c.Pipeline")
+class Pipeline<E> {
+    private final RingBuffer<E> ring;
+    private final SequenceWaitStrategy waitStrategy;
+    private final List<BatchEventProcessor<E>> processors = new ArrayList<>();
+    // 被其他阶段依赖的序号
+    private final Set<Sequence> consumed = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean started;
+
+    public Pipeline(Supplier<E> factory, int bufferSize, boolean multiProducer, SequenceWaitStrategy waitStrategy) {
+        this.ring = new RingBuffer<>(factory, bufferSize, multiProducer, waitStrategy);
+        this.waitStrategy = waitStrategy;
+    }
+
+    @SafeVarargs
+    public final Stage handleEventsWith(EventHandler<? super E>... handlers){
+        // 逐个取出元素，不把可变参数数组传出去
+        List<EventHandler<? super E>> list = new ArrayList<>(handlers.length);
+        for (EventHandler<? super E> handler : handlers) {
+            list.add(handler);
+        }
+        return createStage(new Sequence[0], list);
+    }
+
+    // 合并多个阶段，用来表达菱形依赖
+    @SafeVarargs
+    public final Stage after(Stage... stages){
+        List<Sequence> sequences = new ArrayList<>();
+        for (Stage stage : stages) {
+            Collections.addAll(sequences, stage.sequences);
+        }
+        return new Stage(sequences.toArray(new Sequence[0]));
+    }
+
+    private Stage createStage(Sequence[] dependents, List<EventHandler<? super E>> handlers){
+        if(started){
+            throw new IllegalStateException("流水线已经启动");
+        }
+        Collections.addAll(consumed, dependents);
+        SequenceBarrier barrier = new SequenceBarrier(ring, waitStrategy, dependents);
+        Sequence[] sequences = new Sequence[handlers.size()];
+        for (int i = 0; i < sequences.length; i++) {
+            BatchEventProcessor<E> processor = new BatchEventProcessor<>(ring, barrier, handlers.get(i));
+            processors.add(processor);
+            sequences[i] = processor.sequence;
+        }
+        return new Stage(sequences);
+    }
+
+    // 每个 handler 一个新线程
+    public void start(){
+        start(task -> new Thread(task, "pipeline-" + processors.indexOf(task)).start());
+    }
+
+    // 由 executor 运行各个 handler，例如 ThreadPool，它的核心线程数不能少于 handler 数
+    public void start(Executor executor){
+        if(started){
+            throw new IllegalStateException("流水线已经启动");
+        }
+        started = true;
+        List<Sequence> gating = new ArrayList<>();
+        for (BatchEventProcessor<E> processor : processors) {
+            if(!consumed.contains(processor.sequence)){
+                gating.add(processor.sequence);
+            }
+        }
+        ring.setGatingSequences(gating.toArray(new Sequence[0]));
+        for (BatchEventProcessor<E> processor : processors) {
+            executor.execute(processor);
+        }
+    }
+
+    public RingBuffer<E> ring(){
+        return ring;
+    }
+
+    // translator 不捕获变量时，发布不会分配对象
+    public void publishEvent(ObjLongConsumer<E> translator, long value){
+        long sequence = ring.next();
+        try {
+            translator.accept(ring.get(sequence), value);
+        } finally {
+            ring.publish(sequence);
+        }
+    }
+
+    public <A> void publishEvent(BiConsumer<E, A> translator, A arg){
+        long sequence = ring.next();
+        try {
+            translator.accept(ring.get(sequence), arg);
+        } finally {
+            ring.publish(sequence);
+        }
+    }
+
+    // 等已经申请的事件全部处理完，再停止所有 handler
+    public void shutdown(){
+        Sequence[] gating = processors.stream()
+                .map(p -> p.sequence)
+                .filter(s -> !consumed.contains(s))
+                .toArray(Sequence[]::new);
+        long published = ring.cursor.get();
+        while(Sequence.minimum(gating, Long.MAX_VALUE) < published){
+            LockSupport.parkNanos(1000);
+        }
+        for (BatchEventProcessor<E> processor : processors) {
+            processor.halt();
+        }
+    }
+
+    // 一组并行的 handler 的序号
+    public class Stage {
+        private final Sequence[] sequences;
+
+        Stage(Sequence[] sequences) {
+            this.sequences = sequences;
+        }
+
+        @SafeVarargs
+        public final Stage then(EventHandler<? super E>... handlers){
+            List<EventHandler<? super E>> list = new ArrayList<>(handlers.length);
+            for (EventHandler<? super E> handler : handlers) {
+                list.add(handler);
+            }
+            return createStage(sequences, list);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+@Slf4j(topic = "c.d18_flow_backpressure")
+public class d18_flow_backpressure {
+    public static void main(String[] args) throws InterruptedException {
+        ThreadPool threadPool = new ThreadPool(
+                2,
+                1000, TimeUnit.MILLISECONDS,
+                100,
+                (queue, task) -> queue.put(task));
+
+        // 上游：SubmissionPublisher 只按下游请求的数量推送，超出时 submit 阻塞，生产者被限速
+        SubmissionPublisher<Integer> source = new SubmissionPublisher<>(Runnable::run, 16);
+        BackpressureProcessor<Integer> processor = new BackpressureProcessor<>(threadPool, 64, 16);
+        source.subscribe(processor);
+
+        int n = 2000;
+        int[] state = new int[2];
+        CountDownLatch latch = new CountDownLatch(1);
+        // 慢消费者，每次请求 32 个，消费一半后再补一半
+        processor.subscribe(new BatchedSubscriber<Integer>(32, e -> {
+            if(e != state[0]){
+                state[1]++;
+            }
+            state[0]++;
+            if(state[0] % 500 == 0){
+                log.debug("已消费 {} 个，缓冲 {} 个", state[0], processor.getBufferedSize());
+            }
+            LockSupport.parkNanos(20_000);
+        }) {
+            @Override
+            public void onComplete() {
+                latch.countDown();
+            }
+        });
+
+        long start = System.nanoTime();
+        for(int i = 0; i < n; ++ i){
+            source.submit(i);
+        }
+        source.close();
+        latch.await();
+        log.debug("消费 {} 个，乱序 {} 个，耗时 {}ms，向上游请求 {} 次",
+                state[0], state[1], (System.nanoTime() - start) / 1000_000, processor.getUpstreamRequests());
+        threadPool.shutdown();
+    }
+}
+
+/**
+ * 带背压的 Flow 桥接：上游 Publisher -> BlockQueue -> 一个下游 Subscriber
+ * 向上游请求的数量不超过队列剩余的空间（已请求未到达 + 已入队 <= capacity），所以队列永远不会满，
+ * 上游在队列满之前就停止推送，不需要靠拒绝策略或者阻塞 worker 来反压
+ * 下游 request(n) 累加需求，由 executor 上的一个排空任务按需求批量取出并依次调用 onNext；
+ * 交付给下游的元素累计到 batch 个才向上游补充一次请求，避免每个元素都回传一次信号
+ * 同一时刻最多只有一个排空任务在运行，onNext / onError / onComplete 不会并发调用
+ */
+@Slf4j(topic = "c.BackpressureProcessor")
+class BackpressureProcessor<T> implements Flow.Processor<T, T> {
+    private final Executor executor;
+    private final BlockQueue<T> queue;
+    private final int capacity;
+    private final int batch;
+
+    private volatile Flow.Subscription upstream;
+    private final AtomicReference<Downstream> downstream = new AtomicReference<>();
+
+    // 上游结束后设置，排空任务把队列里剩下的交付完再通知下游
+    private volatile boolean done;
+    private volatile Throwable error;
+
+    // 排空任务的调度计数，从 0 变为 1 的线程负责提交排空任务
+    private final AtomicInteger wip = new AtomicInteger();
+
+    // 只有排空任务访问
+    private final List<T> drained = new ArrayList<>();
+    private long consumed;
+
+    private final AtomicLong upstreamRequests = new AtomicLong();
+
+    public BackpressureProcessor(Executor executor, int capacity) {
+        this(executor, capacity, Math.max(1, capacity / 4));
+    }
+
+    public BackpressureProcessor(Executor executor, int capacity, int batch) {
+        if(capacity <= 0 || batch <= 0 || batch > capacity){
+            throw new IllegalArgumentException("capacity=" + capacity + ", batch=" + batch);
+        }
+        this.executor = executor;
+        this.queue = new BlockQueue<>(capacity);
+        this.capacity = capacity;
+        this.batch = batch;
+    }
+
+    // ---------------- 上游 ----------------
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if(upstream != null){
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        requestUpstream(capacity);
+    }
+
+    @Override
+    public void onNext(T item) {
+        if(item == null){
+            throw new NullPointerException();
+        }
+        // 请求量不超过剩余空间，放不下说明上游违反了请求约定
+        if(!queue.offer(item, 0, TimeUnit.NANOSECONDS)){
+            upstream.cancel();
+            onError(new IllegalStateException("上游推送超过请求的数量"));
+            return;
+        }
+        schedule();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        done = true;
+        schedule();
+    }
+
+    @Override
+    public void onComplete() {
+        done = true;
+        schedule();
+    }
+
+    private void requestUpstream(long n){
+        upstreamRequests.incrementAndGet();
+        upstream.request(n);
+    }
+
+    // ---------------- 下游 ----------------
+
+    // 只支持一个订阅者，第二个订阅者收到 onError
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Downstream d = new Downstream(subscriber);
+        if(!downstream.compareAndSet(null, d)){
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("只支持一个订阅者"));
+            return;
+        }
+        subscriber.onSubscribe(d);
+        schedule();
+    }
+
+    // 已经入队还没有交付给下游的元素个数
+    public int getBufferedSize(){
+        return queue.getSize();
+    }
+
+    // 向上游调用 request 的次数
+    public long getUpstreamRequests(){
+        return upstreamRequests.get();
+    }
+
+    private void schedule(){
+        if(wip.getAndIncrement() == 0){
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain(){
+        int missed = 1;
+        while(true){
+            Downstream d = downstream.get();
+            if(d != null && !d.cancelled){
+                deliver(d);
+            }
+            missed = wip.addAndGet(-missed);
+            if(missed == 0){
+                return;
+            }
+        }
+    }
+
+    private void deliver(Downstream d){
+        long requested = d.demand.get();
+        long emitted = 0;
+        while(emitted < requested && !d.cancelled && d.invalidRequest == null){
+            drained.clear();
+            int n = queue.drainTo(drained, (int) Math.min(batch, requested - emitted));
+            if(n == 0){
+                break;
+            }
+            for (T item : drained) {
+                try {
+                    d.subscriber.onNext(item);
+                } catch (Throwable t) {
+                    log.debug("订阅者 onNext 抛出异常，取消订阅", t);
+                    d.cancel();
+                    return;
+                }
+            }
+            emitted += n;
+        }
+        drained.clear();
+        if(emitted > 0){
+            if(requested != Long.MAX_VALUE){
+                d.demand.addAndGet(-emitted);
+            }
+            // 交付够一批再向上游补充，补充的数量正好是腾出来的空间
+            consumed += emitted;
+            if(consumed >= batch && !done){
+                requestUpstream(consumed);
+                consumed = 0;
+            }
+        }
+        Throwable invalid = d.invalidRequest;
+        if(invalid != null && !d.cancelled){
+            d.cancel();
+            d.subscriber.onError(invalid);
+            return;
+        }
+        if(done && queue.getSize() == 0 && !d.cancelled){
+            d.cancelled = true;
+            Throwable t = error;
+            if(t != null){
+                d.subscriber.onError(t);
+            }else{
+                d.subscriber.onComplete();
+            }
+        }
+    }
+
+    private final class Downstream implements Flow.Subscription {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private volatile boolean cancelled;
+        // request 的参数不合法，由排空任务取消订阅并发出 onError
+        private volatile Throwable invalidRequest;
+
+        Downstream(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        // 需求累加，溢出时按无界处理
+        @Override
+        public void request(long n) {
+            if(n <= 0){
+                // 和 onComplete 一样交给排空任务发出，不能在调用线程上直接调用，可能和正在执行的 onNext 并发
+                if(invalidRequest == null){
+                    invalidRequest = new IllegalArgumentException("request 的数量必须为正数: " + n);
+                }
+                schedule();
+                return;
+            }
+            demand.getAndAccumulate(n, (current, add) -> {
+                long sum = current + add;
+                return sum < 0 ? Long.MAX_VALUE : sum;
+            });
+            schedule();
+        }
+
+        // 取消后不再交付，也不再向上游请求
+        @Override
+        public void cancel() {
+            if(cancelled){
+                return;
+            }
+            cancelled = true;
+            Flow.Subscription s = upstream;
+            if(s != null){
+                s.cancel();
+            }
+            queue.removeIf(t -> true);
+        }
+    }
+}
+
+/**
+ * 批量请求的订阅者：先请求 batch 个，每消费掉一半再补充一半，
+ * 上游看到的是少量大块的 request 调用，而不是每个元素一次
+ */
+class BatchedSubscriber<T> implements Flow.Subscriber<T> {
+    private final int batch;
+    private final int refill;
+    private final Consumer<? super T> consumer;
+    private Flow.Subscription subscription;
+    private int received;
+
+    public BatchedSubscriber(int batch, Consumer<? super T> consumer) {
+        if(batch <= 0){
+            throw new IllegalArgumentException("batch=" + batch);
+        }
+        this.batch = batch;
+        this.refill = Math.max(1, batch / 2);
+        this.consumer = consumer;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(batch);
+    }
+
+    @Override
+    public void onNext(T item) {
+        consumer.accept(item);
+        if(++received == refill){
+            received = 0;
+            subscription.request(refill);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        throwable.printStackTrace();
+    }
+
+    @Override
+    public void onComplete() {
+    }
+}
@@ -0,0 +1,342 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+@Slf4j(topic = "c.d19_object_pool")
+public class d19_object_pool {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws InterruptedException {
+        ThreadPool threadPool = new ThreadPool(
+                4,
+                1000, TimeUnit.MILLISECONDS,
+                100,
+                (queue, task) -> queue.put(task));
+        int n = 20_000;
+
+        // 每个任务 new 一个 64KB 缓冲区
+        run("new byte[]", threadPool, n, () -> {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            fill(buffer);
+        });
+
+        // 从池里借，worker 各自的弹匣命中时不访问共享状态
+        MagazinePool<byte[]> pool = new MagazinePool<>(() -> new byte[BUFFER_SIZE], 8, 4);
+        run("MagazinePool", threadPool, n, () -> {
+            byte[] buffer = pool.borrow();
+            try {
+                fill(buffer);
+            } finally {
+                pool.release(buffer);
+            }
+        });
+        log.debug("池共创建 {} 个缓冲区", pool.getCreatedCount());
+
+        // 突发借出一批再归还，自己的两个弹匣放不下的交给仓库，仓库也放不下的丢弃
+        List<byte[]> burst = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            burst.add(pool.borrow());
+        }
+        burst.forEach(pool::release);
+        log.debug("突发之后共创建 {} 个，丢弃 {} 个，仓库 {} 个弹匣", pool.getCreatedCount(), pool.getDroppedCount(), pool.getDepotSize());
+        // 第一次 trim 开始统计，第二次释放这段时间一直闲置的弹匣
+        pool.trim();
+        pool.trim();
+        log.debug("两次 trim 后仓库 {} 个弹匣", pool.getDepotSize());
+
+        // 调试模式：借出不还的对象可以查到借出时的调用栈
+        MagazinePool<byte[]> debugPool = new MagazinePool<>(() -> new byte[16], null, 8, 4, true);
+        byte[] leaked = debugPool.borrow();
+        debugPool.release(debugPool.borrow());
+        Thread.sleep(20);
+        log.debug("借出超过 10ms 未归还 {} 个", debugPool.checkLeaks(10, TimeUnit.MILLISECONDS));
+        debugPool.release(leaked);
+        threadPool.shutdown();
+    }
+
+    private static void fill(byte[] buffer){
+        for (int i = 0; i < buffer.length; i += 512) {
+            buffer[i] = (byte) i;
+        }
+    }
+
+    private static void run(String name, ThreadPool threadPool, int n, Runnable work) throws InterruptedException {
+        long gcCount = 0, gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount -= gc.getCollectionCount();
+            gcTime -= gc.getCollectionTime();
+        }
+        CountDownLatch latch = new CountDownLatch(n);
+        long start = System.nanoTime();
+        for(int i = 0; i < n; ++ i){
+            threadPool.execute(() -> {
+                work.run();
+                latch.countDown();
+            });
+        }
+        latch.await();
+        long cost = System.nanoTime() - start;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += gc.getCollectionCount();
+            gcTime += gc.getCollectionTime();
+        }
+        log.debug("{}: 耗时 {}ms，GC {} 次，GC 耗时 {}ms", name, cost / 1000_000, gcCount, gcTime);
+    }
+}
+
+/**
+ * 带线程本地弹匣的对象池
+ * 每个线程持有两个弹匣（loaded / previous），借出和归还先在自己的弹匣上进行，不访问任何共享状态；
+ * 两个弹匣都空（或都满）时才去共享仓库换一个满的（或交一个满的），一次换 magazineSize 个对象，
+ * 仓库用无锁队列实现，访问频率被弹匣大小摊薄
+ * 仓库最多保留 maxDepotMagazines 个满弹匣，超出的对象直接丢弃交给 GC，池的总保有量有上界：
+ * 线程数 * 2 * magazineSize + maxDepotMagazines * magazineSize
+ * trim() 释放上次 trim 以来一直没有被用到的满弹匣，定期调用可以在负载下降后归还内存
+ * 调试模式下记录每个借出对象的调用栈，checkLeaks 找出长时间未归还的对象，重复归还直接抛异常
+ */
+@Slf4j(topic = "c.MagazinePool")
+class MagazinePool<T> {
+    private final Supplier<? extends T> factory;
+    // 归还时重置对象状态，可以为 null
+    private final Consumer<? super T> reset;
+    private final int magazineSize;
+    private final int maxDepotMagazines;
+
+    private final ThreadLocal<Cache> caches = ThreadLocal.withInitial(Cache::new);
+
+    // 仓库：满弹匣和空弹匣
+    private final ConcurrentLinkedQueue<Magazine> full = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Magazine> empty = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger fullCount = new AtomicInteger();
+    // 上次 trim 以来仓库中满弹匣数的最小值，这么多弹匣在这段时间里从来没被用到
+    private final AtomicInteger lowWatermark = new AtomicInteger();
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    // 调试模式下记录借出的对象
+    private final Map<Object, Borrow> borrowed;
+
+    private volatile HashedWheelTimer.Timeout trimTimeout;
+
+    public MagazinePool(Supplier<? extends T> factory, int magazineSize, int maxDepotMagazines) {
+        this(factory, null, magazineSize, maxDepotMagazines, false);
+    }
+
+    public MagazinePool(Supplier<? extends T> factory, Consumer<? super T> reset,
+                        int magazineSize, int maxDepotMagazines, boolean leakDetection) {
+        if(magazineSize <= 0 || maxDepotMagazines < 0){
+            throw new IllegalArgumentException("magazineSize=" + magazineSize + ", maxDepotMagazines=" + maxDepotMagazines);
+        }
+        this.factory = factory;
+        this.reset = reset;
+        this.magazineSize = magazineSize;
+        this.maxDepotMagazines = maxDepotMagazines;
+        this.borrowed = leakDetection ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+    }
+
+    public T borrow(){
+        T t = take();
+        if(borrowed != null){
+            borrowed.put(t, new Borrow());
+        }
+        return t;
+    }
+
+    private T take(){
+        Cache cache = caches.get();
+        if(cache.loaded.size > 0){
+            return cache.loaded.pop();
+        }
+        if(cache.previous.size > 0){
+            cache.swap();
+            return cache.loaded.pop();
+        }
+        // 两个都空，用空弹匣去仓库换一个满的
+        Magazine m = full.poll();
+        if(m != null){
+            lowWatermark.accumulateAndGet(fullCount.decrementAndGet(), Math::min);
+            empty.offer(cache.previous);
+            cache.previous = cache.loaded;
+            cache.loaded = m;
+            return cache.loaded.pop();
+        }
+        created.increment();
+        return factory.get();
+    }
+
+    public void release(T t){
+        if(t == null){
+            throw new NullPointerException();
+        }
+        if(borrowed != null && borrowed.remove(t) == null){
+            throw new IllegalStateException("对象不是从这个池借出的，或者已经归还过: " + t);
+        }
+        if(reset != null){
+            reset.accept(t);
+        }
+        Cache cache = caches.get();
+        if(cache.loaded.size < magazineSize){
+            cache.loaded.push(t);
+            return;
+        }
+        if(cache.previous.size == 0){
+            cache.swap();
+            cache.loaded.push(t);
+            return;
+        }
+        // 两个都满，把 previous 交给仓库，仓库满了就丢弃其中的对象
+        Magazine m = cache.previous;
+        if(fullCount.incrementAndGet() <= maxDepotMagazines){
+            full.offer(m);
+            m = empty.poll();
+            if(m == null){
+                m = new Magazine(magazineSize);
+            }
+        }else{
+            fullCount.decrementAndGet();
+            dropped.add(m.size);
+            m.clear();
+        }
+        cache.previous = cache.loaded;
+        cache.loaded = m;
+        cache.loaded.push(t);
+    }
+
+    // 释放上次 trim 以来一直闲置的满弹匣，返回释放的弹匣数
+    public int trim(){
+        int idle = lowWatermark.getAndSet(Integer.MAX_VALUE);
+        int released = 0;
+        while(released < idle){
+            Magazine m = full.poll();
+            if(m == null){
+                break;
+            }
+            fullCount.decrementAndGet();
+            dropped.add(m.size);
+            m.clear();
+            empty.offer(m);
+            released++;
+        }
+        lowWatermark.accumulateAndGet(fullCount.get(), Math::min);
+        if(released > 0){
+            log.debug("trim 释放 {} 个弹匣", released);
+        }
+        return released;
+    }
+
+    // 用时间轮定期 trim
+    public void startTrimming(HashedWheelTimer timer, long interval, TimeUnit unit){
+        stopTrimming();
+        trimTimeout = timer.scheduleAtFixedRate(this::trim, interval, interval, unit);
+    }
+
+    public void stopTrimming(){
+        HashedWheelTimer.Timeout t = trimTimeout;
+        if(t != null){
+            t.cancel();
+        }
+    }
+
+    // 调试模式下打印借出超过 age 还没有归还的对象及其借出位置，返回个数；非调试模式返回 -1
+    public int checkLeaks(long age, TimeUnit unit){
+        if(borrowed == null){
+            return -1;
+        }
+        long now = System.nanoTime();
+        long ageNanos = unit.toNanos(age);
+        int leaks = 0;
+        synchronized (borrowed) {
+            for (Map.Entry<Object, Borrow> entry : borrowed.entrySet()) {
+                if(now - entry.getValue().time >= ageNanos){
+                    leaks++;
+                    log.debug("疑似泄漏 {}", entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return leaks;
+    }
+
+    // 池一共创建的对象数，稳定后不再增长说明借出都被复用了
+    public long getCreatedCount(){
+        return created.sum();
+    }
+
+    // 因为超出保有量上限或者 trim 而丢弃的对象数
+    public long getDroppedCount(){
+        return dropped.sum();
+    }
+
+    // 仓库中的满弹匣数
+    public int getDepotSize(){
+        return fullCount.get();
+    }
+
+    private final class Cache {
+        Magazine loaded = new Magazine(magazineSize);
+        Magazine previous = new Magazine(magazineSize);
+
+        void swap(){
+            Magazine m = loaded;
+            loaded = previous;
+            previous = m;
+        }
+    }
+
+    private final class Magazine {
+        private final Object[] items;
+        private int size;
+
+        Magazine(int capacity) {
+            this.items = new Object[capacity];
+        }
+
+        void push(T t){
+            items[size++] = t;
+        }
+
+        @SuppressWarnings("unchecked")
+        T pop(){
+            T t = (T) items[--size];
+            items[size] = null;
+            return t;
+        }
+
+        void clear(){
+            for (int i = 0; i < size; i++) {
+                items[i] = null;
+            }
+            size = 0;
+        }
+    }
+
+    // 借出位置的调用栈
+    private static final class Borrow extends Throwable {
+        private final long time = System.nanoTime();
+        private final String thread = Thread.currentThread().getName();
+
+        Borrow() {
+            super(null, null, false, true);
+        }
+
+        @Override
+        public String getMessage() {
+            return "由线程 " + thread + " 借出";
+        }
+    }
+}
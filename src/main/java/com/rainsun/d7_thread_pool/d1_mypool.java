@@ -3,15 +3,29 @@ package com.rainsun.d7_thread_pool;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Deque;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 @Slf4j(topic = "c.d1_mypool")
 public class d1_mypool {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         ThreadPool threadPool = new ThreadPool(
                 1,
                 1000, TimeUnit.MILLISECONDS,
@@ -40,98 +54,713 @@ public class d1_mypool {
                 log.debug("{}", j);
             });
         }
+        threadPool.shutdown();
+
+        batch();
+        elastic();
+    }
+
+    // 一次提交一批任务，worker 每次最多从队列取 8 个
+    private static void batch() throws InterruptedException {
+        ThreadPool threadPool = new ThreadPool(
+                2, 2,
+                500, TimeUnit.MILLISECONDS,
+                new RingBlockQueue<>(256),
+                (queue, task) -> queue.put(task));
+        threadPool.setDrainBatchSize(8);
+
+        CountDownLatch latch = new CountDownLatch(200);
+        List<Runnable> tasks = new ArrayList<>();
+        for(int i = 0; i < 200; ++ i){
+            tasks.add(latch::countDown);
+        }
+        threadPool.executeAll(tasks);
+        latch.await();
+        log.debug("批量任务执行完毕");
+        threadPool.shutdown();
+    }
+
+    // 核心线程 2 个，队列满后最多扩到 4 个，救急线程空闲 500ms 后回收
+    private static void elastic() throws InterruptedException {
+        ThreadPool threadPool = new ThreadPool(
+                2, 4,
+                500, TimeUnit.MILLISECONDS,
+                2,
+                (queue, task) -> log.debug("放弃 {}", task));
+        threadPool.prestartCoreWorkers();
+
+        for(int i = 0; i < 6; ++ i){
+            int j = i;
+            threadPool.execute(()->{
+                try {
+                    Thread.sleep(300L);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                log.debug("{}", j);
+            });
+        }
+        log.debug("高峰期 worker 数 {}", threadPool.getPoolSize());
+        Thread.sleep(1500L);
+        log.debug("空闲后 worker 数 {}", threadPool.getPoolSize());
+        threadPool.shutdown();
     }
 }
 
 // 拒绝策略
 @FunctionalInterface
 interface RejectPolicy<T>{
-    void reject(BlockQueue<T> queue, T task);
+    void reject(TaskQueue<T> queue, T task);
+}
+
+// 任务队列，ThreadPool 只依赖这组操作，可以替换为不同的实现
+interface TaskQueue<T>{
+    // 不指定优先级通道
+    int DEFAULT_LANE = -1;
+
+    // 带超时的阻塞获取
+    T poll(long timeout, TimeUnit unit);
+
+    // 不阻塞的获取，给自旋等待的消费者反复调用，没有任务或者暂时拿不到时返回 null
+    default T tryPoll(){
+        return poll(0, TimeUnit.NANOSECONDS);
+    }
+
+    // 阻塞获取
+    T take();
+
+    // 阻塞添加
+    void put(T task);
+
+    // 带超时的阻塞添加
+    boolean offer(T task, long timeout, TimeUnit timeUnit);
+
+    int getSize();
+
+    // 队列满时交给拒绝策略处理
+    void tryPut(RejectPolicy<T> rejectPolicy, T task);
+
+    // 放入指定的优先级通道，不阻塞；只有一个通道的队列忽略 lane
+    default boolean offer(T task, int lane){
+        return offer(task, 0, TimeUnit.NANOSECONDS);
+    }
+
+    default void tryPut(RejectPolicy<T> rejectPolicy, T task, int lane){
+        tryPut(rejectPolicy, task);
+    }
+
+    // 批量添加，不阻塞，按顺序放入能放下的前缀部分，返回放入的个数
+    default int offerAll(List<? extends T> tasks){
+        int added = 0;
+        for (T task : tasks) {
+            if(!offer(task, 0, TimeUnit.NANOSECONDS)){
+                break;
+            }
+            added++;
+        }
+        return added;
+    }
+
+    // 批量获取，不阻塞，最多取出 maxElements 个放入 collection，返回取出的个数
+    default int drainTo(Collection<? super T> collection, int maxElements){
+        int drained = 0;
+        T t;
+        while(drained < maxElements && (t = poll(0, TimeUnit.NANOSECONDS)) != null){
+            collection.add(t);
+            drained++;
+        }
+        return drained;
+    }
+
+    // 移除所有满足条件的任务，返回是否移除了任务；不支持移除的队列返回 false
+    default boolean removeIf(Predicate<? super T> filter){
+        return false;
+    }
 }
 
 @Slf4j(topic = "c.ThreadPool")
-class ThreadPool{
+class ThreadPool implements Executor {
     // 任务队列
-    private BlockQueue<Runnable> taskQueue;
+    private TaskQueue<Runnable> taskQueue;
 
     // 线程集合
     private HashSet<Worker> workers = new HashSet<>();
 
-    // 核心线程数
-    private int coreSize;
+    // 当前 worker 数，热路径上读它，不用进入 workers 锁
+    private final AtomicInteger workerCount = new AtomicInteger();
+
+    // 核心线程数，核心线程空闲时也不会退出；运行中可以通过 setCoreSize 调整
+    private volatile int coreSize;
 
-    // 获取任务的超时时间
+    // 最大线程数，只有队列满了才会创建超出核心数的救急线程
+    private volatile int maxSize;
+
+    // 执行完的任务数，不需要开启监控，供 HillClimbingController 计算吞吐
+    private final LongAdder completedTasks = new LongAdder();
+
+    // setCoreSize 调小后还需要退出的 worker 数；队列一直有任务时 worker 不会空闲超时，
+    // 所以由 worker 在两个任务之间主动退出
+    private final AtomicInteger shrinking = new AtomicInteger();
+
+    // 救急线程的空闲存活时间，也是获取任务的超时时间
     private long timeout;
     private TimeUnit timeUnit;
 
     // 拒绝策略
-    private RejectPolicy<Runnable> rejectPolicy;
+    private volatile RejectPolicy<Runnable> rejectPolicy;
+
+    // 监控指标，调用 enableMetrics 之后才会统计
+    private volatile ThreadPoolMetrics metrics;
+
+    // 拒绝策略需要任务排队时间时不为空，入队前先问它要不要提前拒绝
+    private final SojournRejectPolicy<Runnable> sojournPolicy;
+
+    // worker 每次从队列最多取走的任务数，大于 1 时减少每个任务的加锁次数，
+    // 代价是一个 worker 手里攒着的任务不能被其他空闲 worker 拿走
+    private volatile int drainBatchSize = 1;
+
+    // worker 等待任务的方式，默认直接阻塞在任务队列上
+    private volatile WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+
+    private volatile boolean shutdown;
+
+    private static final AtomicInteger POOL_IDS = new AtomicInteger();
+
+    // 出现在 JFR 事件里，区分不同的线程池
+    private volatile String name = "pool-" + POOL_IDS.incrementAndGet();
 
     public ThreadPool(int coreSize, long timeout, TimeUnit timeUnit, int queueCapacity, RejectPolicy<Runnable> rejectPolicy) {
+        this(coreSize, coreSize, timeout, timeUnit, new BlockQueue<>(queueCapacity), rejectPolicy);
+    }
+
+    // 自定义任务队列，例如无锁的 RingBlockQueue
+    public ThreadPool(int coreSize, long timeout, TimeUnit timeUnit, TaskQueue<Runnable> taskQueue, RejectPolicy<Runnable> rejectPolicy) {
+        this(coreSize, coreSize, timeout, timeUnit, taskQueue, rejectPolicy);
+    }
+
+    public ThreadPool(int coreSize, int maxSize, long keepAlive, TimeUnit timeUnit, int queueCapacity, RejectPolicy<Runnable> rejectPolicy) {
+        this(coreSize, maxSize, keepAlive, timeUnit, new BlockQueue<>(queueCapacity), rejectPolicy);
+    }
+
+    public ThreadPool(int coreSize, int maxSize, long keepAlive, TimeUnit timeUnit, TaskQueue<Runnable> taskQueue, RejectPolicy<Runnable> rejectPolicy) {
+        if(coreSize < 0 || maxSize <= 0 || maxSize < coreSize){
+            throw new IllegalArgumentException("coreSize=" + coreSize + ", maxSize=" + maxSize);
+        }
         this.coreSize = coreSize;
-        this.timeout = timeout;
+        this.maxSize = maxSize;
+        this.timeout = keepAlive;
         this.timeUnit = timeUnit;
-        this.taskQueue = new BlockQueue<>(queueCapacity);
-        this.rejectPolicy = rejectPolicy;
+        this.taskQueue = taskQueue;
+        this.rejectPolicy = ThreadPoolEvents.instrument(PoolFuture.failDropped(rejectPolicy), this);
+        this.sojournPolicy = rejectPolicy instanceof SojournRejectPolicy<Runnable> policy ? policy : null;
     }
 
     // 执行任务
+    @Override
     public void execute(Runnable task){
-        // 任务数没有超过 coreSize 时，直接交给 worker 对象执行
-        // 如果任务数超过 coreSize 时，加入任务队列 taskQueue 暂存
+        execute(task, TaskQueue.DEFAULT_LANE);
+    }
+
+    // 执行任务，任务队列是 LaneBlockQueue 时放入指定的优先级通道
+    public void execute(Runnable task, int lane){
+        if(shutdown){
+            throw new RejectedExecutionException("线程池已关闭 " + task);
+        }
+        long now = 0;
+        if(metrics != null || sojournPolicy != null || ThreadPoolEvents.tracingTasks()){
+            now = System.nanoTime();
+            task = new TimedTask(task, now);
+        }
+        // 1. worker 数没有达到 coreSize 时，直接新建核心 worker 执行
+        if(workerCount.get() < coreSize && addWorker(task, true)){
+            return;
+        }
+        // 排队时间一直过长时，不等队列满就提前拒绝
+        if(sojournPolicy != null && sojournPolicy.shouldReject(taskQueue, task, now)){
+            rejectPolicy.reject(taskQueue, task);
+            return;
+        }
+        // 2. 否则加入任务队列 taskQueue 暂存，入队在 workers 锁外面，提交线程之间不会互相排队
+        if(taskQueue.offer(task, lane)){
+            ThreadPoolEvents.enqueued(name, 1, lane, taskQueue);
+            // coreSize 为 0 时可能没有 worker 来取这个任务
+            if(workerCount.get() == 0){
+                addWorker(null, false);
+            }
+            return;
+        }
+        // 3. 队列满了，创建救急线程直接执行这个任务
+        if(workerCount.get() < maxSize && addWorker(task, false)){
+            return;
+        }
+        /**
+         * 4. 救急线程也满了，走拒绝策略：
+         * 1. 一直等待
+         * 2. 带超时的等待
+         * 3. 放弃任务执行
+         * 4. 抛出异常
+         * 5. 调用者自己执行任务
+         */
+        taskQueue.tryPut(rejectPolicy, task, lane);
+    }
+
+    // 尝试执行任务，队列满并且不能再新增 worker 时返回 false，不走拒绝策略，也不会阻塞
+    public boolean tryExecute(Runnable task){
+        if(shutdown){
+            return false;
+        }
+        if(metrics != null || sojournPolicy != null || ThreadPoolEvents.tracingTasks()){
+            task = new TimedTask(task, System.nanoTime());
+        }
+        if(workerCount.get() < coreSize && addWorker(task, true)){
+            return true;
+        }
+        if(taskQueue.offer(task, TaskQueue.DEFAULT_LANE)){
+            ThreadPoolEvents.enqueued(name, 1, TaskQueue.DEFAULT_LANE, taskQueue);
+            if(workerCount.get() == 0){
+                addWorker(null, false);
+            }
+            return true;
+        }
+        return workerCount.get() < maxSize && addWorker(task, false);
+    }
+
+    // 批量执行任务：一次进入 workers 锁补齐 worker，剩下的一次入队，按入队数量唤醒 worker
+    public void executeAll(Collection<? extends Runnable> tasks){
+        if(shutdown){
+            throw new RejectedExecutionException("线程池已关闭");
+        }
+        List<Runnable> pending = new ArrayList<>(tasks.size());
+        long now = System.nanoTime();
+        boolean timed = metrics != null || sojournPolicy != null || ThreadPoolEvents.tracingTasks();
+        for (Runnable task : tasks) {
+            pending.add(timed ? new TimedTask(task, now) : task);
+        }
+        int next = 0;
+        // 1. 核心 worker 不够，每个新 worker 直接带走一个任务
+        if(workerCount.get() < coreSize){
+            next = addWorkers(pending, next, true);
+        }
+        if(sojournPolicy != null){
+            // 需要提前拒绝的任务不入队
+            List<Runnable> admitted = new ArrayList<>(pending.size() - next);
+            for (; next < pending.size(); next++) {
+                Runnable task = pending.get(next);
+                if(sojournPolicy.shouldReject(taskQueue, task, now)){
+                    rejectPolicy.reject(taskQueue, task);
+                }else{
+                    admitted.add(task);
+                }
+            }
+            pending = admitted;
+            next = 0;
+        }
+        // 2. 剩下的整批加入任务队列
+        if(next < pending.size()){
+            int offered = taskQueue.offerAll(pending.subList(next, pending.size()));
+            next += offered;
+            ThreadPoolEvents.enqueued(name, offered, TaskQueue.DEFAULT_LANE, taskQueue);
+            if(workerCount.get() == 0){
+                addWorker(null, false);
+            }
+        }
+        // 3. 队列放不下的部分交给救急线程
+        if(next < pending.size() && workerCount.get() < maxSize){
+            next = addWorkers(pending, next, false);
+        }
+        // 4. 还剩下的逐个走拒绝策略
+        for (; next < pending.size(); next++) {
+            taskQueue.tryPut(rejectPolicy, pending.get(next));
+        }
+    }
+
+    // 提交有返回值的任务，返回的 future 本身就是放入队列的任务，不再额外包装
+    public <V> CompletableFuture<V> submit(Callable<V> task){
+        PoolFuture<V> future = new PoolFuture<>(this, task);
+        execute(future);
+        return future;
+    }
+
+    public CompletableFuture<Void> submit(Runnable task){
+        return submit(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    // 提交一批任务并等待全部完成，任务通过 executeAll 一次入队
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+        List<PoolFuture<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(new PoolFuture<>(this, task));
+        }
+        executeAll(futures);
+        try {
+            for (PoolFuture<T> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException | CancellationException ignored) {
+                    // 结果留在 future 里，由调用者自己检查
+                }
+            }
+        } catch (InterruptedException e) {
+            for (PoolFuture<T> future : futures) {
+                future.cancel(false);
+            }
+            throw e;
+        }
+        return new ArrayList<>(futures);
+    }
+
+    // 提交一批任务，返回第一个成功的结果，其余任务取消；全部失败时抛出最后一个异常
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+        if(tasks.isEmpty()){
+            throw new IllegalArgumentException("tasks is empty");
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(tasks.size());
+        List<PoolFuture<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            PoolFuture<T> future = new PoolFuture<>(this, task);
+            future.whenComplete((value, e) -> {
+                if(e == null){
+                    result.complete(value);
+                }else if(remaining.decrementAndGet() == 0){
+                    result.completeExceptionally(e);
+                }
+            });
+            futures.add(future);
+        }
+        executeAll(futures);
+        try {
+            return result.get();
+        } finally {
+            for (PoolFuture<T> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    // 从任务队列中移除还没有开始执行的任务，任务可能被 TimedTask 包装过
+    public boolean remove(Runnable task){
+        return taskQueue.removeIf(t -> t == task || t instanceof TimedTask timed && timed.task == task);
+    }
+
+    // 开启监控，之后提交的任务才会统计等待时间，建议在提交任务之前调用
+    public ThreadPoolMetrics enableMetrics(){
         synchronized (workers){
-            if(workers.size() < coreSize){
-                Worker worker = new Worker(task);
-                log.debug("新增 worker{}, task{}", worker, task);
-                workers.add(worker);
-                worker.start();
-            }else{
-//                taskQueue.put(task);
+            if(metrics == null){
+                metrics = new ThreadPoolMetrics(this::getPoolSize, taskQueue::getSize);
+                rejectPolicy = metrics.instrument(rejectPolicy);
+            }
+            return metrics;
+        }
+    }
+
+    public ThreadPoolMetrics getMetrics(){
+        return metrics;
+    }
+
+    public void setDrainBatchSize(int drainBatchSize){
+        if(drainBatchSize <= 0){
+            throw new IllegalArgumentException("drainBatchSize must be positive: " + drainBatchSize);
+        }
+        this.drainBatchSize = drainBatchSize;
+    }
+
+    public void setWaitStrategy(WaitStrategy waitStrategy){
+        this.waitStrategy = waitStrategy;
+    }
+
+    // 提前启动全部核心线程，避免第一批请求承担创建线程的延迟，返回启动的数量
+    public int prestartCoreWorkers(){
+        int started = 0;
+        while(addWorker(null, true)){
+            started++;
+        }
+        return started;
+    }
+
+    // 不再接收新任务，队列里已有的任务执行完后 worker 陆续退出
+    public void shutdown(){
+        shutdown = true;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public void setName(String name){
+        this.name = name;
+    }
+
+    public int getPoolSize(){
+        return workerCount.get();
+    }
+
+    public int getQueueSize(){
+        return taskQueue.getSize();
+    }
+
+    public int getCoreSize(){
+        return coreSize;
+    }
+
+    public int getMaxSize(){
+        return maxSize;
+    }
+
+    public long getCompletedTaskCount(){
+        return completedTasks.sum();
+    }
+
+    // 调大时按队列里的任务数补充 worker；调小时多出来的 worker 执行完手上的任务就退出
+    public void setCoreSize(int coreSize){
+        if(coreSize < 0){
+            throw new IllegalArgumentException("coreSize=" + coreSize);
+        }
+        int delta;
+        synchronized (workers){
+            delta = coreSize - this.coreSize;
+            // 固定大小的线程池（maxSize == coreSize）调整后仍然是固定大小，否则队列满时又会创建救急线程
+            if(maxSize < coreSize || maxSize == this.coreSize){
+                maxSize = coreSize;
+            }
+            this.coreSize = coreSize;
+            // 只退出原来核心数以内、超出新核心数的部分，救急线程仍然按 keepAlive 回收
+            // 连续调小时累加到还没用完的名额上，不能覆盖，否则 worker 都在忙时前一次调小就丢了；调大时清零
+            if(delta < 0){
+                int excess = Math.max(0, workerCount.get() - coreSize);
+                shrinking.accumulateAndGet(-delta, (pending, more) -> Math.min(pending + more, excess));
+            }else if(delta > 0){
+                shrinking.set(0);
+            }
+        }
+        int n = Math.min(delta, taskQueue.getSize());
+        for (int i = 0; i < n; i++) {
+            if(!addWorker(null, true)){
+                break;
+            }
+        }
+    }
+
+    public void setMaxSize(int maxSize){
+        synchronized (workers){
+            if(maxSize <= 0 || maxSize < coreSize){
+                throw new IllegalArgumentException("coreSize=" + coreSize + ", maxSize=" + maxSize);
+            }
+            this.maxSize = maxSize;
+        }
+    }
+
+    private boolean addWorker(Runnable firstTask, boolean core){
+        synchronized (workers){
+            int limit = core ? coreSize : maxSize;
+            if(shutdown || workerCount.get() >= limit){
+                return false;
+            }
+            startWorker(firstTask, core);
+            return true;
+        }
+    }
+
+    // 从 tasks[from] 开始，每个新 worker 带走一个任务，返回下一个没有分配的下标
+    private int addWorkers(List<Runnable> tasks, int from, boolean core){
+        synchronized (workers){
+            int limit = core ? coreSize : maxSize;
+            while(!shutdown && from < tasks.size() && workerCount.get() < limit){
+                startWorker(tasks.get(from++), core);
+            }
+            return from;
+        }
+    }
+
+    // 调用方持有 workers 锁
+    private void startWorker(Runnable firstTask, boolean core){
+        Worker worker = new Worker(firstTask);
+        log.debug("新增 {} worker{}, task{}", core ? "核心" : "救急", worker, firstTask);
+        workers.add(worker);
+        workerCount.incrementAndGet();
+        if(metrics != null){
+            metrics.workerCreated();
+        }
+        worker.start();
+        ThreadPoolEvents.workerStarted(name, worker, core, workerCount.get());
+    }
+
+    // 获取任务，返回 null 表示当前 worker 应该退出（退出前已经扣减了 workerCount）
+    private Runnable getTask(Deque<Runnable> batch){
+        // 先执行上次批量取走的任务
+        if(!batch.isEmpty()){
+            return batch.pollFirst();
+        }
+        if(retireExcess()){
+            return null;
+        }
+        while(true){
+            Runnable task = waitStrategy.poll(taskQueue, timeout, timeUnit);
+            if(task != null){
+                int batchSize = drainBatchSize;
+                if(batchSize > 1){
+                    taskQueue.drainTo(batch, batchSize - 1);
+                }
+                return task;
+            }
+            // 空闲超时
+            if(shutdown){
+                workerCount.decrementAndGet();
+                return null;
+            }
+            // 超出核心数的部分才退出，CAS 保证并发超时时不会退到 coreSize 以下
+            int count = workerCount.get();
+            if(count > coreSize && workerCount.compareAndSet(count, count - 1)){
+                // 最后一个 worker 退出时，execute 可能刚把任务放入队列、读到的 workerCount 还是 1，
+                // 先扣减再检查队列，队列不空就撤销退出，任务不会留在没有 worker 的队列里
+                if(count == 1 && taskQueue.getSize() > 0 && !shutdown){
+                    workerCount.incrementAndGet();
+                    continue;
+                }
+                return null;
+            }
+        }
+    }
+
+    // 核心线程数调小后，在取下一个任务之前退出，成功时已经扣减了 workerCount
+    private boolean retireExcess(){
+        int quota;
+        while((quota = shrinking.get()) > 0){
+            int count = workerCount.get();
+            // 已经不超过核心数，或者自己是最后一个 worker 而队列里还有任务
+            if(count <= coreSize || count == 1 && taskQueue.getSize() > 0){
+                return false;
+            }
+            if(shrinking.compareAndSet(quota, quota - 1)){
+                if(workerCount.compareAndSet(count, count - 1)){
+                    return true;
+                }
+                shrinking.incrementAndGet();
+            }
+        }
+        return false;
+    }
 
-                /**
-                 * 拒绝策略：
-                 * 1. 一直等待
-                 * 2. 带超时的等待
-                 * 3. 放弃任务执行
-                 * 4. 抛出异常
-                 * 5. 调用者自己执行任务
-                 */
-                taskQueue.tryPut(rejectPolicy, task);
+    // 带入队时间的任务，开始执行时回报排队时间，并统计执行时间
+    final class TimedTask implements Runnable {
+        private final Runnable task;
+        private final long enqueuedAt;
+        // 是否已经开始执行，用来判断拒绝策略是否让调用者执行了任务
+        private volatile boolean started;
+
+        TimedTask(Runnable task, long enqueuedAt) {
+            this.task = task;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        boolean isStarted(){
+            return started;
+        }
+
+        Runnable getTask(){
+            return task;
+        }
+
+        @Override
+        public void run() {
+            started = true;
+            long start = System.nanoTime();
+            long wait = start - enqueuedAt;
+            if(sojournPolicy != null){
+                sojournPolicy.onDequeue(wait, start);
+            }
+            ThreadPoolEvents.dequeued(name, task, wait);
+            TaskCompleteEvent event = new TaskCompleteEvent();
+            event.begin();
+            ThreadPoolMetrics m = metrics;
+            boolean failed = true;
+            try {
+                task.run();
+                failed = false;
+            } finally {
+                if(m != null){
+                    m.taskCompleted(wait, System.nanoTime() - start, failed);
+                }
+                ThreadPoolEvents.completed(event, name, task, wait, failed);
             }
         }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
     }
 
     class Worker extends Thread{
         private Runnable task;
+        // 批量取出、还没执行的任务
+        private final Deque<Runnable> batch = new ArrayDeque<>();
+        // 这个 worker 执行完的任务数，退出时记入 JFR 事件
+        private long completed;
         public Worker(Runnable task){
             this.task = task;
         }
 
         @Override
         public void run(){
-            // 执行任务
-            // 1. task不为空，执行任务
-            // 2. task 为空，则接着从任务队列获取新任务再执行任务
-            while(task != null || (task = taskQueue.poll(timeout, timeUnit)) != null){
-                try {
-                    log.debug("正在执行任务...{}", task);
-                    task.run();
-                }catch (Exception e){
-                    e.printStackTrace();
-                }finally {
-                    task = null;
+            long startedAt = System.nanoTime();
+            // getTask 返回 null 时已经扣减了 workerCount，任务抛出 Error 异常退出时要在这里扣减
+            boolean abrupt = true;
+            try {
+                // 执行任务
+                // 1. task不为空，执行任务
+                // 2. task 为空，则接着从任务队列获取新任务再执行任务
+                while(task != null || (task = getTask(batch)) != null){
+                    ThreadPoolMetrics m = metrics;
+                    if(m != null){
+                        m.taskStarted();
+                    }
+                    try {
+                        log.debug("正在执行任务...{}", task);
+                        task.run();
+                    }catch (Exception e){
+                        e.printStackTrace();
+                    }finally {
+                        task = null;
+                        completed++;
+                        completedTasks.increment();
+                        if(m != null){
+                            m.taskFinished();
+                        }
+                    }
+                }
+                abrupt = false;
+            } finally {
+                if(abrupt){
+                    workerCount.decrementAndGet();
+                }
+                synchronized(workers){
+                    log.debug("worker 被移除 {}", this);
+                    workers.remove(this);
+                    if(metrics != null){
+                        metrics.workerRetired();
+                    }
+                }
+                ThreadPoolEvents.workerRetired(name, System.nanoTime() - startedAt, completed, workerCount.get());
+                // 补上一个核心 worker，批量取走还没执行的任务放回队列
+                if(abrupt){
+                    for (Runnable t : batch) {
+                        taskQueue.tryPut(rejectPolicy, t);
+                    }
+                    if(!addWorker(null, true) && workerCount.get() == 0 && taskQueue.getSize() > 0){
+                        addWorker(null, false);
+                    }
                 }
-            }
-            synchronized(workers){
-                log.debug("worker 被移除 {}", this);
-                workers.remove(this);
             }
         }
     }
 }
 
 @Slf4j(topic = "c.BlockQueue")
-class BlockQueue<T>{
+class BlockQueue<T> implements TaskQueue<T>{
     // 1. 任务队列
     private Deque<T> queue = new ArrayDeque<>();
 
@@ -152,6 +781,7 @@ class BlockQueue<T>{
     }
 
     // 带超时的阻塞获取
+    @Override
     public T poll(long timeout, TimeUnit unit){
         lock.lock();
         try {
@@ -176,7 +806,25 @@ class BlockQueue<T>{
         }
     }
 
+    // 锁被占用时不排队等锁，自旋的消费者不会和生产者一起挤在锁上
+    @Override
+    public T tryPoll(){
+        if(!lock.tryLock()){
+            return null;
+        }
+        try {
+            T t = queue.pollFirst();
+            if(t != null){
+                fullWaitSet.signal();
+            }
+            return t;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // 获取任务
+    @Override
     public T take(){
         lock.lock();
         try {
@@ -196,10 +844,16 @@ class BlockQueue<T>{
     }
 
     // 添加任务
+    @Override
     public void put(T task){
         lock.lock();
         try {
+            QueueFullWaitEvent event = null;
             while(queue.size() == capacity){
+                if(event == null){
+                    event = new QueueFullWaitEvent();
+                    event.begin();
+                }
                 try{
                     log.debug("等待加入任务队列 {}", task);
                     fullWaitSet.await();
@@ -207,6 +861,7 @@ class BlockQueue<T>{
                     e.printStackTrace();
                 }
             }
+            ThreadPoolEvents.queueFullWaited(event, capacity, false);
             log.debug("加入任务队列 {}", task);
             queue.addLast(task);
             emptyWaitSet.signal();
@@ -216,21 +871,29 @@ class BlockQueue<T>{
     }
 
     // 具有超时时间的阻塞添加
+    @Override
     public boolean offer(T task, long timeout, TimeUnit timeUnit){
         lock.lock();
         try {
             long nanos = timeUnit.toNanos(timeout);
+            QueueFullWaitEvent event = null;
             while(queue.size() == capacity){
                 try{
                     if(nanos <= 0){
+                        ThreadPoolEvents.queueFullWaited(event, capacity, true);
                         return false;
                     }
+                    if(event == null){
+                        event = new QueueFullWaitEvent();
+                        event.begin();
+                    }
                     log.debug("等待加入任务队列 {}", task);
                     nanos = fullWaitSet.awaitNanos(nanos);
                 }catch (InterruptedException e) {
                     e.printStackTrace();
                 }
             }
+            ThreadPoolEvents.queueFullWaited(event, capacity, false);
             log.debug("加入任务队列 {}", task);
             queue.addLast(task);
             emptyWaitSet.signal();
@@ -240,6 +903,7 @@ class BlockQueue<T>{
         }
     }
 
+    @Override
     public int getSize(){
         lock.lock();;
         try {
@@ -249,6 +913,7 @@ class BlockQueue<T>{
         }
     }
 
+    @Override
     public void tryPut(RejectPolicy<T> rejectPolicy, T task){
         lock.lock();;
         try {
@@ -263,4 +928,56 @@ class BlockQueue<T>{
             lock.unlock();
         }
     }
+
+    // 一次加锁放入一批任务，放入几个就唤醒几个消费者
+    @Override
+    public int offerAll(List<? extends T> tasks){
+        lock.lock();
+        try {
+            int n = Math.min(capacity - queue.size(), tasks.size());
+            for (int i = 0; i < n; i++) {
+                queue.addLast(tasks.get(i));
+                emptyWaitSet.signal();
+            }
+            log.debug("批量加入任务队列 {} 个", n);
+            return n;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    // 移除几个任务就唤醒几个生产者
+    @Override
+    public boolean removeIf(Predicate<? super T> filter){
+        lock.lock();
+        try {
+            int before = queue.size();
+            if(!queue.removeIf(filter)){
+                return false;
+            }
+            for (int i = queue.size(); i < before; i++) {
+                fullWaitSet.signal();
+            }
+            log.debug("移除任务 {} 个", before - queue.size());
+            return true;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    // 一次加锁取出一批任务，取出几个就唤醒几个生产者
+    @Override
+    public int drainTo(Collection<? super T> collection, int maxElements){
+        lock.lock();
+        try {
+            int n = Math.min(maxElements, queue.size());
+            for (int i = 0; i < n; i++) {
+                collection.add(queue.removeFirst());
+                fullWaitSet.signal();
+            }
+            return n;
+        }finally {
+            lock.unlock();
+        }
+    }
 }
@@ -0,0 +1,324 @@
+package com.rainsun.d7_thread_pool;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@Slf4j(topic = "c.d20_jfr_events")
+public class d20_jfr_events {
+    public static void main(String[] args) throws InterruptedException, IOException {
+        // 事件默认关闭，生产环境可以用 -XX:StartFlightRecording:settings=xxx.jfc 打开，这里用代码开启
+        Path file = Files.createTempFile("thread-pool", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : ThreadPoolEvents.NAMES) {
+                recording.enable(name);
+            }
+            recording.start();
+
+            ThreadPool threadPool = new ThreadPool(
+                    2, 3,
+                    100, TimeUnit.MILLISECONDS,
+                    4,
+                    (queue, task) -> task.run());
+            threadPool.setName("jfr-demo");
+            int n = 50;
+            CountDownLatch latch = new CountDownLatch(n);
+            for(int i = 0; i < n; ++ i){
+                threadPool.execute(() -> {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    latch.countDown();
+                });
+            }
+            latch.await();
+            threadPool.shutdown();
+            Thread.sleep(300);
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        Map<String, Integer> counts = new TreeMap<>();
+        long maxQueueTime = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            counts.merge(event.getEventType().getName(), 1, Integer::sum);
+            if(event.hasField("queueTime")){
+                maxQueueTime = Math.max(maxQueueTime, event.getDuration("queueTime").toNanos());
+            }
+        }
+        Files.delete(file);
+        counts.forEach((name, count) -> log.debug("{}: {}", name, count));
+        log.debug("最长排队 {}us", maxQueueTime / 1000);
+    }
+}
+
+/**
+ * ThreadPool / BlockQueue 的 JFR 事件
+ * 全部默认关闭（@Enabled(false)），在 .jfc 配置或者 Recording.enable 里按名字打开，
+ * 和 GC、I/O 事件放在同一个录制里就能对照线程池的停顿
+ * 关闭时 isEnabled 由 JFR 直接返回 false，事件对象经过逃逸分析不会真正分配，热路径上只多一次判断；
+ * 任务的排队时间需要在入队时记下时间戳，所以只有 TaskDequeue / TaskComplete 打开时提交的任务才会被包装
+ */
+final class ThreadPoolEvents {
+    static final String[] NAMES = {
+            TaskEnqueueEvent.NAME, TaskDequeueEvent.NAME, TaskCompleteEvent.NAME,
+            TaskRejectEvent.NAME, WorkerStartEvent.NAME, WorkerRetireEvent.NAME, QueueFullWaitEvent.NAME
+    };
+
+    private ThreadPoolEvents() {
+    }
+
+    // 是否需要记录任务的入队时间
+    static boolean tracingTasks(){
+        return new TaskDequeueEvent().isEnabled() || new TaskCompleteEvent().isEnabled();
+    }
+
+    static void enqueued(String pool, int count, int lane, TaskQueue<?> queue){
+        TaskEnqueueEvent event = new TaskEnqueueEvent();
+        if(event.shouldCommit()){
+            event.pool = pool;
+            event.count = count;
+            event.lane = lane;
+            event.queueSize = queue.getSize();
+            event.commit();
+        }
+    }
+
+    static void dequeued(String pool, Runnable task, long queueTime){
+        TaskDequeueEvent event = new TaskDequeueEvent();
+        if(event.shouldCommit()){
+            event.pool = pool;
+            event.task = task.getClass().getName();
+            event.queueTime = queueTime;
+            event.commit();
+        }
+    }
+
+    static void completed(TaskCompleteEvent event, String pool, Runnable task, long queueTime, boolean failed){
+        if(event.shouldCommit()){
+            event.pool = pool;
+            event.task = task.getClass().getName();
+            event.queueTime = queueTime;
+            event.failed = failed;
+            event.commit();
+        }
+    }
+
+    // 只在队列满、真正需要等待时才创建事件
+    static void queueFullWaited(QueueFullWaitEvent event, int capacity, boolean timedOut){
+        if(event != null && event.shouldCommit()){
+            event.capacity = capacity;
+            event.timedOut = timedOut;
+            event.commit();
+        }
+    }
+
+    // 拒绝策略可能阻塞（一直等待）或者由调用者执行任务，事件的持续时间就是提交线程被拖住的时间
+    static RejectPolicy<Runnable> instrument(RejectPolicy<Runnable> policy, ThreadPool pool){
+        return (queue, task) -> {
+            TaskRejectEvent event = new TaskRejectEvent();
+            event.begin();
+            try {
+                policy.reject(queue, task);
+            } finally {
+                if(event.shouldCommit()){
+                    event.pool = pool.getName();
+                    event.task = task.toString();
+                    event.queueSize = queue.getSize();
+                    event.poolSize = pool.getPoolSize();
+                    event.commit();
+                }
+            }
+        };
+    }
+
+    static void workerStarted(String pool, Thread worker, boolean core, int poolSize){
+        WorkerStartEvent event = new WorkerStartEvent();
+        if(event.shouldCommit()){
+            event.pool = pool;
+            event.worker = worker;
+            event.core = core;
+            event.poolSize = poolSize;
+            event.commit();
+        }
+    }
+
+    static void workerRetired(String pool, long lifetime, long completedTasks, int poolSize){
+        WorkerRetireEvent event = new WorkerRetireEvent();
+        if(event.shouldCommit()){
+            event.pool = pool;
+            event.lifetime = lifetime;
+            event.completedTasks = completedTasks;
+            event.poolSize = poolSize;
+            event.commit();
+        }
+    }
+}
+
+@Name(TaskEnqueueEvent.NAME)
+@Label("Task Enqueue")
+@Category({"Thread Pool", "Task"})
+@Description("任务放入 ThreadPool 的任务队列")
+@Enabled(false)
+@StackTrace(false)
+class TaskEnqueueEvent extends Event {
+    static final String NAME = "com.rainsun.ThreadPool.TaskEnqueue";
+
+    @Label("Pool")
+    String pool;
+
+    @Label("Count")
+    @Description("批量提交时一次入队的任务数")
+    int count;
+
+    @Label("Lane")
+    int lane;
+
+    @Label("Queue Size")
+    @Description("入队后的队列长度")
+    int queueSize;
+}
+
+@Name(TaskDequeueEvent.NAME)
+@Label("Task Dequeue")
+@Category({"Thread Pool", "Task"})
+@Description("worker 取出任务开始执行")
+@Enabled(false)
+@StackTrace(false)
+class TaskDequeueEvent extends Event {
+    static final String NAME = "com.rainsun.ThreadPool.TaskDequeue";
+
+    @Label("Pool")
+    String pool;
+
+    @Label("Task Class")
+    String task;
+
+    @Label("Queue Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long queueTime;
+}
+
+@Name(TaskCompleteEvent.NAME)
+@Label("Task Complete")
+@Category({"Thread Pool", "Task"})
+@Description("任务执行结束，事件的持续时间是执行时间")
+@Enabled(false)
+@StackTrace(false)
+class TaskCompleteEvent extends Event {
+    static final String NAME = "com.rainsun.ThreadPool.TaskComplete";
+
+    @Label("Pool")
+    String pool;
+
+    @Label("Task Class")
+    String task;
+
+    @Label("Queue Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long queueTime;
+
+    @Label("Failed")
+    boolean failed;
+}
+
+@Name(TaskRejectEvent.NAME)
+@Label("Task Reject")
+@Category({"Thread Pool"})
+@Description("队列已满、worker 也到了上限，任务交给拒绝策略；持续时间是拒绝策略的执行时间")
+@Enabled(false)
+class TaskRejectEvent extends Event {
+    static final String NAME = "com.rainsun.ThreadPool.TaskReject";
+
+    @Label("Pool")
+    String pool;
+
+    @Label("Task")
+    String task;
+
+    @Label("Queue Size")
+    int queueSize;
+
+    @Label("Pool Size")
+    int poolSize;
+}
+
+@Name(WorkerStartEvent.NAME)
+@Label("Worker Start")
+@Category({"Thread Pool", "Worker"})
+@Enabled(false)
+class WorkerStartEvent extends Event {
+    static final String NAME = "com.rainsun.ThreadPool.WorkerStart";
+
+    @Label("Pool")
+    String pool;
+
+    @Label("Worker")
+    Thread worker;
+
+    @Label("Core")
+    boolean core;
+
+    @Label("Pool Size")
+    @Description("启动后的 worker 数")
+    int poolSize;
+}
+
+@Name(WorkerRetireEvent.NAME)
+@Label("Worker Retire")
+@Category({"Thread Pool", "Worker"})
+@Description("worker 空闲超时或者线程池关闭后退出，由退出的 worker 线程提交")
+@Enabled(false)
+@StackTrace(false)
+class WorkerRetireEvent extends Event {
+    static final String NAME = "com.rainsun.ThreadPool.WorkerRetire";
+
+    @Label("Pool")
+    String pool;
+
+    @Label("Lifetime")
+    @Timespan(Timespan.NANOSECONDS)
+    long lifetime;
+
+    @Label("Completed Tasks")
+    long completedTasks;
+
+    @Label("Pool Size")
+    @Description("退出后的 worker 数")
+    int poolSize;
+}
+
+@Name(QueueFullWaitEvent.NAME)
+@Label("Queue Full Wait")
+@Category({"Thread Pool", "Queue"})
+@Description("生产者因为 BlockQueue 已满而等待，持续时间是等待时间")
+@Enabled(false)
+class QueueFullWaitEvent extends Event {
+    static final String NAME = "com.rainsun.BlockQueue.QueueFullWait";
+
+    @Label("Capacity")
+    int capacity;
+
+    @Label("Timed Out")
+    boolean timedOut;
+}
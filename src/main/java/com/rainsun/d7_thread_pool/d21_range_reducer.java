@@ -0,0 +1,262 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongToDoubleFunction;
+import java.util.function.LongUnaryOperator;
+import java.util.stream.IntStream;
+
+@Slf4j(topic = "c.d21_range_reducer")
+public class d21_range_reducer {
+    public static void main(String[] args) {
+        RangeReducer reducer = new RangeReducer(ForkJoinPool.commonPool());
+        int n = 50_000_000;
+
+        long start = System.nanoTime();
+        long sum = reducer.mapReduce(0, n, 0, i -> i, Long::sum);
+        log.debug("RangeReducer 求和 {}，耗时 {}ms", sum, (System.nanoTime() - start) / 1000_000);
+
+        start = System.nanoTime();
+        long expected = IntStream.range(0, n).parallel().asLongStream().sum();
+        log.debug("IntStream.parallel 求和 {}，耗时 {}ms", expected, (System.nanoTime() - start) / 1000_000);
+
+        // 数组和平方和
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = i % 100 / 10.0;
+        }
+        start = System.nanoTime();
+        double sumOfSquares = reducer.mapReduceToDouble(0, n, 0, i -> values[(int) i] * values[(int) i], Double::sum);
+        log.debug("平方和 {}，数组求和 {}，耗时 {}ms", sumOfSquares, reducer.sum(values), (System.nanoTime() - start) / 1000_000);
+
+        // AddTask 每两个元素一个任务，只适合演示 fork / join
+        start = System.nanoTime();
+        int small = ForkJoinPool.commonPool().invoke(new AddTask(0, 100_000 - 1));
+        log.debug("AddTask 求和 {}，耗时 {}ms", small, (System.nanoTime() - start) / 1000_000);
+    }
+}
+
+/**
+ * ForkJoinPool 上的区间归约，结果一直是 long / double，不装箱
+ * 分裂时只 fork 右半边，左半边留给当前线程继续分裂，最后剩下的一段直接顺序计算，
+ * 再按相反的顺序 join 右半边并合并结果；被偷走的右半边在别的线程上同样这样处理
+ * 切分粒度是自适应的：区间小于 max(minGrain, 长度 / (并行度 * 8)) 不再分裂；
+ * 当前线程队列里已经积压了足够多没被偷走的任务时（getSurplusQueuedTaskCount > 3），也不再分裂，直接顺序计算
+ * 合并函数必须满足结合律，identity 只在区间为空时返回
+ */
+class RangeReducer {
+    // 每个叶子任务至少处理这么多个元素，再小的话任务本身的开销比计算还大
+    static final int DEFAULT_MIN_GRAIN = 1 << 12;
+
+    private final ForkJoinPool pool;
+    private final int minGrain;
+
+    public RangeReducer(ForkJoinPool pool) {
+        this(pool, DEFAULT_MIN_GRAIN);
+    }
+
+    public RangeReducer(ForkJoinPool pool, int minGrain) {
+        if(minGrain <= 0){
+            throw new IllegalArgumentException("minGrain must be positive: " + minGrain);
+        }
+        this.pool = pool;
+        this.minGrain = minGrain;
+    }
+
+    // 顺序计算 [from, to) 的部分结果
+    @FunctionalInterface
+    interface LongRangeFunction {
+        long apply(long from, long to);
+    }
+
+    @FunctionalInterface
+    interface DoubleRangeFunction {
+        double apply(long from, long to);
+    }
+
+    // 区间归约的基本形式，leaf 负责一段区间内的顺序循环
+    public long reduce(long from, long to, long identity, LongRangeFunction leaf, LongBinaryOperator combiner){
+        if(from >= to){
+            return identity;
+        }
+        long grain = grain(to - from);
+        // 区间太小或者池里只有一个线程时，在调用线程上直接算，省掉提交和唤醒
+        if(to - from <= grain || pool.getParallelism() <= 1){
+            return leaf.apply(from, to);
+        }
+        LongReduceTask task = new LongReduceTask(from, to, grain, leaf, combiner);
+        pool.invoke(task);
+        return task.result;
+    }
+
+    public double reduceToDouble(long from, long to, double identity, DoubleRangeFunction leaf, DoubleBinaryOperator combiner){
+        if(from >= to){
+            return identity;
+        }
+        long grain = grain(to - from);
+        if(to - from <= grain || pool.getParallelism() <= 1){
+            return leaf.apply(from, to);
+        }
+        DoubleReduceTask task = new DoubleReduceTask(from, to, grain, leaf, combiner);
+        pool.invoke(task);
+        return task.result;
+    }
+
+    // 对 [from, to) 中的每个下标先映射再归约
+    public long mapReduce(long from, long to, long identity, LongUnaryOperator mapper, LongBinaryOperator combiner){
+        return reduce(from, to, identity, (lo, hi) -> {
+            long acc = mapper.applyAsLong(lo);
+            for (long i = lo + 1; i < hi; i++) {
+                acc = combiner.applyAsLong(acc, mapper.applyAsLong(i));
+            }
+            return acc;
+        }, combiner);
+    }
+
+    public double mapReduceToDouble(long from, long to, double identity, LongToDoubleFunction mapper, DoubleBinaryOperator combiner){
+        return reduceToDouble(from, to, identity, (lo, hi) -> {
+            double acc = mapper.applyAsDouble(lo);
+            for (long i = lo + 1; i < hi; i++) {
+                acc = combiner.applyAsDouble(acc, mapper.applyAsDouble(i));
+            }
+            return acc;
+        }, combiner);
+    }
+
+    // 数组求和，叶子里是普通的计数循环，可以被 JIT 向量化
+    public long sum(int[] array){
+        return reduce(0, array.length, 0L, (lo, hi) -> {
+            long acc = 0;
+            for (int i = (int) lo; i < (int) hi; i++) {
+                acc += array[i];
+            }
+            return acc;
+        }, Long::sum);
+    }
+
+    public long sum(long[] array){
+        return reduce(0, array.length, 0L, (lo, hi) -> {
+            long acc = 0;
+            for (int i = (int) lo; i < (int) hi; i++) {
+                acc += array[i];
+            }
+            return acc;
+        }, Long::sum);
+    }
+
+    public double sum(double[] array){
+        return reduceToDouble(0, array.length, 0.0, (lo, hi) -> {
+            double acc = 0;
+            for (int i = (int) lo; i < (int) hi; i++) {
+                acc += array[i];
+            }
+            return acc;
+        }, Double::sum);
+    }
+
+    // 每个 worker 大约分到 8 段，负载不均时空闲线程还有任务可偷
+    private long grain(long size){
+        return Math.max(minGrain, size / ((long) pool.getParallelism() << 3));
+    }
+
+    // 当前线程积压的任务已经够别人偷了，继续分裂只会增加开销
+    private static boolean enoughSurplus(){
+        return RecursiveAction.getSurplusQueuedTaskCount() > 3;
+    }
+
+    private static final class LongReduceTask extends RecursiveAction {
+        private final long from;
+        private final long to;
+        private final long grain;
+        private final LongRangeFunction leaf;
+        private final LongBinaryOperator combiner;
+        // 同一个父任务 fork 出来的右半边组成链表，join 时按 fork 的相反顺序
+        private final LongReduceTask next;
+        long result;
+
+        LongReduceTask(long from, long to, long grain, LongRangeFunction leaf, LongBinaryOperator combiner) {
+            this(from, to, grain, leaf, combiner, null);
+        }
+
+        private LongReduceTask(long from, long to, long grain, LongRangeFunction leaf, LongBinaryOperator combiner, LongReduceTask next) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.leaf = leaf;
+            this.combiner = combiner;
+            this.next = next;
+        }
+
+        @Override
+        protected void compute() {
+            long hi = to;
+            LongReduceTask forked = null;
+            while(hi - from > grain && !enoughSurplus()){
+                long mid = from + ((hi - from) >>> 1);
+                forked = new LongReduceTask(mid, hi, grain, leaf, combiner, forked);
+                forked.fork();
+                hi = mid;
+            }
+            long acc = leaf.apply(from, hi);
+            // 左边的结果在前，保证不满足交换律的合并函数也能得到正确结果
+            for (LongReduceTask t = forked; t != null; t = t.next) {
+                if(t.tryUnfork()){
+                    t.compute();
+                }else{
+                    t.join();
+                }
+                acc = combiner.applyAsLong(acc, t.result);
+            }
+            result = acc;
+        }
+    }
+
+    private static final class DoubleReduceTask extends RecursiveAction {
+        private final long from;
+        private final long to;
+        private final long grain;
+        private final DoubleRangeFunction leaf;
+        private final DoubleBinaryOperator combiner;
+        private final DoubleReduceTask next;
+        double result;
+
+        DoubleReduceTask(long from, long to, long grain, DoubleRangeFunction leaf, DoubleBinaryOperator combiner) {
+            this(from, to, grain, leaf, combiner, null);
+        }
+
+        private DoubleReduceTask(long from, long to, long grain, DoubleRangeFunction leaf, DoubleBinaryOperator combiner, DoubleReduceTask next) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.leaf = leaf;
+            this.combiner = combiner;
+            this.next = next;
+        }
+
+        @Override
+        protected void compute() {
+            long hi = to;
+            DoubleReduceTask forked = null;
+            while(hi - from > grain && !enoughSurplus()){
+                long mid = from + ((hi - from) >>> 1);
+                forked = new DoubleReduceTask(mid, hi, grain, leaf, combiner, forked);
+                forked.fork();
+                hi = mid;
+            }
+            double acc = leaf.apply(from, hi);
+            for (DoubleReduceTask t = forked; t != null; t = t.next) {
+                if(t.tryUnfork()){
+                    t.compute();
+                }else{
+                    t.join();
+                }
+                acc = combiner.applyAsDouble(acc, t.result);
+            }
+            result = acc;
+        }
+    }
+}
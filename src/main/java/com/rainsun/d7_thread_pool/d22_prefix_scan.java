@@ -0,0 +1,300 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.LongBinaryOperator;
+
+@Slf4j(topic = "c.d22_prefix_scan")
+public class d22_prefix_scan {
+    public static void main(String[] args) {
+        PrefixScanner scanner = new PrefixScanner(ForkJoinPool.commonPool());
+        int n = 10_000_000;
+        long[] a = new long[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = i % 7;
+        }
+
+        // 原地累加和，和 Arrays.parallelPrefix 对比
+        long[] expected = a.clone();
+        long start = System.nanoTime();
+        Arrays.parallelPrefix(expected, Long::sum);
+        long cost = System.nanoTime() - start;
+        long[] sums = a.clone();
+        start = System.nanoTime();
+        scanner.scan(sums, Long::sum);
+        log.debug("累加和{}，PrefixScanner {}ms，Arrays.parallelPrefix {}ms",
+                Arrays.equals(sums, expected) ? "一致" : "不一致", (System.nanoTime() - start) / 1000_000, cost / 1000_000);
+
+        // 分段累加：每 1000 个元素一段，每段从头开始
+        boolean[] segmentStart = new boolean[n];
+        for (int i = 0; i < n; i += 1000) {
+            segmentStart[i] = true;
+        }
+        long[] segmented = new long[n];
+        scanner.segmentedScan(a, segmented, segmentStart, Long::sum);
+        boolean ok = true;
+        long acc = 0;
+        for (int i = 0; i < n; i++) {
+            acc = segmentStart[i] ? a[i] : acc + a[i];
+            ok &= segmented[i] == acc;
+        }
+        log.debug("分段累加{}", ok ? "正确" : "错误");
+
+        // 自定义结合运算：running max
+        double[] d = new double[n];
+        for (int i = 0; i < n; i++) {
+            d[i] = Math.sin(i * 1e-6) * i;
+        }
+        double[] maxSoFar = new double[n];
+        scanner.scan(d, maxSoFar, Math::max);
+        log.debug("running max 最后一个 {}，原数组最大值 {}", maxSoFar[n - 1], Arrays.stream(d).max().getAsDouble());
+    }
+}
+
+/**
+ * ForkJoinPool 上的两遍并行前缀扫描（inclusive scan），op 必须满足结合律，不需要单位元
+ * 数组切成若干块：第一遍并行算出每块的归约结果，然后顺序扫描块结果得到每块的进位，
+ * 第二遍并行地在每块内部从进位开始做顺序扫描；总工作量约 2n 次运算，递归深度只有 log(块数)
+ * 分段扫描用 segmentStart 标记每段的第一个元素，扫描在标记处重新开始：
+ * 块的归约结果只统计块内最后一个标记之后的部分，进位遇到带标记的块就被截断
+ * 块数约为并行度的 4 倍，每块不少于 minGrain 个元素；数组小或者只有一个线程时直接顺序扫描
+ */
+class PrefixScanner {
+    static final int DEFAULT_MIN_GRAIN = 1 << 14;
+
+    private final ForkJoinPool pool;
+    private final int minGrain;
+
+    public PrefixScanner(ForkJoinPool pool) {
+        this(pool, DEFAULT_MIN_GRAIN);
+    }
+
+    public PrefixScanner(ForkJoinPool pool, int minGrain) {
+        if(minGrain <= 0){
+            throw new IllegalArgumentException("minGrain must be positive: " + minGrain);
+        }
+        this.pool = pool;
+        this.minGrain = minGrain;
+    }
+
+    // 原地扫描
+    public void scan(long[] array, LongBinaryOperator op){
+        scan(array, array, null, op);
+    }
+
+    // 结果写入 dst，dst 可以就是 src
+    public void scan(long[] src, long[] dst, LongBinaryOperator op){
+        scan(src, dst, null, op);
+    }
+
+    public void segmentedScan(long[] array, boolean[] segmentStart, LongBinaryOperator op){
+        scan(array, array, segmentStart, op);
+    }
+
+    public void segmentedScan(long[] src, long[] dst, boolean[] segmentStart, LongBinaryOperator op){
+        scan(src, dst, segmentStart, op);
+    }
+
+    public void scan(double[] array, DoubleBinaryOperator op){
+        scan(array, array, null, op);
+    }
+
+    public void scan(double[] src, double[] dst, DoubleBinaryOperator op){
+        scan(src, dst, null, op);
+    }
+
+    public void segmentedScan(double[] array, boolean[] segmentStart, DoubleBinaryOperator op){
+        scan(array, array, segmentStart, op);
+    }
+
+    public void segmentedScan(double[] src, double[] dst, boolean[] segmentStart, DoubleBinaryOperator op){
+        scan(src, dst, segmentStart, op);
+    }
+
+    private void scan(long[] src, long[] dst, boolean[] flags, LongBinaryOperator op){
+        int n = checkLengths(src.length, dst.length, flags);
+        int blockSize = blockSize(n);
+        if(blockSize >= n){
+            scanBlock(src, dst, flags, op, 0, n, false, 0);
+            return;
+        }
+        int blocks = (n + blockSize - 1) / blockSize;
+        // 1. 每块的归约结果，最后一块的结果用不到
+        long[] tails = new long[blocks];
+        boolean[] flagged = new boolean[blocks];
+        forEachBlock(blocks - 1, b -> {
+            int from = b * blockSize, to = Math.min(n, from + blockSize);
+            int i = flags == null ? from : lastFlag(flags, from, to);
+            flagged[b] = i > from || flags != null && flags[from];
+            long acc = src[i];
+            for (i++; i < to; i++) {
+                acc = op.applyAsLong(acc, src[i]);
+            }
+            tails[b] = acc;
+        });
+        // 2. 顺序计算每块的进位，第一块没有进位
+        long[] carries = new long[blocks];
+        boolean[] hasCarry = new boolean[blocks];
+        for (int b = 1; b < blocks; b++) {
+            long tail = tails[b - 1];
+            hasCarry[b] = true;
+            carries[b] = flagged[b - 1] || !hasCarry[b - 1] ? tail : op.applyAsLong(carries[b - 1], tail);
+        }
+        // 3. 每块从进位开始做块内扫描
+        forEachBlock(blocks, b -> {
+            int from = b * blockSize, to = Math.min(n, from + blockSize);
+            scanBlock(src, dst, flags, op, from, to, hasCarry[b], carries[b]);
+        });
+    }
+
+    private static void scanBlock(long[] src, long[] dst, boolean[] flags, LongBinaryOperator op,
+                                  int from, int to, boolean hasCarry, long carry){
+        if(from >= to){
+            return;
+        }
+        long acc;
+        int i = from;
+        if(hasCarry && (flags == null || !flags[from])){
+            acc = op.applyAsLong(carry, src[from]);
+        }else{
+            acc = src[from];
+        }
+        dst[i++] = acc;
+        if(flags == null){
+            for (; i < to; i++) {
+                dst[i] = acc = op.applyAsLong(acc, src[i]);
+            }
+        }else{
+            for (; i < to; i++) {
+                dst[i] = acc = flags[i] ? src[i] : op.applyAsLong(acc, src[i]);
+            }
+        }
+    }
+
+    private void scan(double[] src, double[] dst, boolean[] flags, DoubleBinaryOperator op){
+        int n = checkLengths(src.length, dst.length, flags);
+        int blockSize = blockSize(n);
+        if(blockSize >= n){
+            scanBlock(src, dst, flags, op, 0, n, false, 0);
+            return;
+        }
+        int blocks = (n + blockSize - 1) / blockSize;
+        double[] tails = new double[blocks];
+        boolean[] flagged = new boolean[blocks];
+        forEachBlock(blocks - 1, b -> {
+            int from = b * blockSize, to = Math.min(n, from + blockSize);
+            int i = flags == null ? from : lastFlag(flags, from, to);
+            flagged[b] = i > from || flags != null && flags[from];
+            double acc = src[i];
+            for (i++; i < to; i++) {
+                acc = op.applyAsDouble(acc, src[i]);
+            }
+            tails[b] = acc;
+        });
+        double[] carries = new double[blocks];
+        boolean[] hasCarry = new boolean[blocks];
+        for (int b = 1; b < blocks; b++) {
+            double tail = tails[b - 1];
+            hasCarry[b] = true;
+            carries[b] = flagged[b - 1] || !hasCarry[b - 1] ? tail : op.applyAsDouble(carries[b - 1], tail);
+        }
+        forEachBlock(blocks, b -> {
+            int from = b * blockSize, to = Math.min(n, from + blockSize);
+            scanBlock(src, dst, flags, op, from, to, hasCarry[b], carries[b]);
+        });
+    }
+
+    private static void scanBlock(double[] src, double[] dst, boolean[] flags, DoubleBinaryOperator op,
+                                  int from, int to, boolean hasCarry, double carry){
+        if(from >= to){
+            return;
+        }
+        double acc;
+        int i = from;
+        if(hasCarry && (flags == null || !flags[from])){
+            acc = op.applyAsDouble(carry, src[from]);
+        }else{
+            acc = src[from];
+        }
+        dst[i++] = acc;
+        if(flags == null){
+            for (; i < to; i++) {
+                dst[i] = acc = op.applyAsDouble(acc, src[i]);
+            }
+        }else{
+            for (; i < to; i++) {
+                dst[i] = acc = flags[i] ? src[i] : op.applyAsDouble(acc, src[i]);
+            }
+        }
+    }
+
+    private static int checkLengths(int src, int dst, boolean[] flags){
+        if(src != dst || flags != null && flags.length != src){
+            throw new IllegalArgumentException("长度不一致 src=" + src + ", dst=" + dst
+                    + (flags == null ? "" : ", segmentStart=" + flags.length));
+        }
+        return src;
+    }
+
+    // 块内最后一个段起点的下标，没有则返回 from
+    private static int lastFlag(boolean[] flags, int from, int to){
+        for (int i = to - 1; i > from; i--) {
+            if(flags[i]){
+                return i;
+            }
+        }
+        return from;
+    }
+
+    // 每块的长度，不小于 n 时顺序扫描
+    private int blockSize(int n){
+        int parallelism = pool.getParallelism();
+        if(parallelism <= 1){
+            return n;
+        }
+        int blocks = (int) Math.min((n + (long) minGrain - 1) / minGrain, (long) parallelism << 2);
+        return blocks <= 1 ? n : (n + blocks - 1) / blocks;
+    }
+
+    // 并行执行 body(0) .. body(blocks - 1)
+    private void forEachBlock(int blocks, IntConsumer body){
+        pool.invoke(new BlockTask(0, blocks, body));
+    }
+
+    // 按块下标分裂，fork 右半边、当前线程继续处理左半边
+    private static final class BlockTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final IntConsumer body;
+
+        BlockTask(int from, int to, IntConsumer body) {
+            this.from = from;
+            this.to = to;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= 1){
+                if(to > from){
+                    body.accept(from);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            BlockTask right = new BlockTask(mid, to, body);
+            right.fork();
+            new BlockTask(from, mid, body).compute();
+            if(right.tryUnfork()){
+                right.compute();
+            }else{
+                right.join();
+            }
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+@Slf4j(topic = "c.d23_mapped_map_reduce")
+public class d23_mapped_map_reduce {
+    private static final String[] LEVELS = {"DEBUG", "INFO ", "WARN ", "ERROR"};
+
+    // 每个块一个累加器，块之间按树形合并
+    static class Stats {
+        final long[] levels = new long[LEVELS.length];
+        long latencySum;
+
+        Stats merge(Stats other){
+            for (int i = 0; i < levels.length; i++) {
+                levels[i] += other.levels[i];
+            }
+            latencySum += other.latencySum;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "levels=" + Arrays.toString(levels) + ", latencySum=" + latencySum;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path file = Files.createTempFile("access", ".log");
+        int lines = 2_000_000;
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int i = 0; i < lines; i++) {
+                // 2024-01-01T00:00:00 INFO  service=svc3 latency=123
+                writer.write("2024-01-01T00:00:00 " + LEVELS[i % 7 % 4] + " service=svc" + i % 10 + " latency=" + i % 1000);
+                writer.newLine();
+            }
+        }
+        log.debug("测试文件 {}MB", Files.size(file) >> 20);
+
+        // 级别在固定的第 20 列，latency 是最后一个 '=' 后面的数字，全程不创建 String
+        MappedFileReducer<Stats> reducer = new MappedFileReducer<>(
+                ForkJoinPool.commonPool(), RecordFormat.lines(), 8 << 20,
+                Stats::new,
+                (stats, line) -> {
+                    switch (line.byteAt(20)) {
+                        case 'D' -> stats.levels[0]++;
+                        case 'I' -> stats.levels[1]++;
+                        case 'W' -> stats.levels[2]++;
+                        case 'E' -> stats.levels[3]++;
+                    }
+                    int eq = line.lastIndexOf((byte) '=');
+                    stats.latencySum += line.parseLong(eq + 1, line.length());
+                },
+                Stats::merge);
+        long start = System.nanoTime();
+        Stats mapped = reducer.reduce(file);
+        log.debug("MappedFileReducer {}，耗时 {}ms", mapped, (System.nanoTime() - start) / 1000_000);
+
+        start = System.nanoTime();
+        Stats expected = new Stats();
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String line;
+            while((line = reader.readLine()) != null){
+                String level = line.substring(20, 25);
+                for (int i = 0; i < LEVELS.length; i++) {
+                    if(LEVELS[i].equals(level)){
+                        expected.levels[i]++;
+                    }
+                }
+                expected.latencySum += Long.parseLong(line.substring(line.lastIndexOf('=') + 1));
+            }
+        }
+        log.debug("BufferedReader {}，耗时 {}ms", expected, (System.nanoTime() - start) / 1000_000);
+        Files.delete(file);
+    }
+}
+
+/**
+ * 内存映射文件上的 fork / join map-reduce
+ * 文件按字节区间二分，分割点由 RecordFormat 对齐到记录边界，同一条记录不会被切到两个块里；
+ * 区间不超过 chunkSize 时映射这一段（FileChannel.map，单次映射不超过 2GB，所以几十 GB 的文件也能处理），
+ * 对每条记录调用 mapper 累加到这个块自己的累加器里，累加器之间不共享，不需要同步
+ * 左右两半的结果在 join 时用 combiner 合并，合并本身也是一棵树，不会集中在一个线程上
+ * mapper 收到的 RecordView 是复用的只读视图，只在回调期间有效，需要保留内容时自己复制
+ */
+class MappedFileReducer<R> {
+    static final long DEFAULT_CHUNK_SIZE = 64L << 20;
+
+    private final ForkJoinPool pool;
+    private final RecordFormat format;
+    private final long chunkSize;
+    private final Supplier<R> accumulator;
+    private final BiConsumer<R, RecordView> mapper;
+    private final BinaryOperator<R> combiner;
+
+    public MappedFileReducer(ForkJoinPool pool, RecordFormat format,
+                             Supplier<R> accumulator, BiConsumer<R, RecordView> mapper, BinaryOperator<R> combiner) {
+        this(pool, format, DEFAULT_CHUNK_SIZE, accumulator, mapper, combiner);
+    }
+
+    public MappedFileReducer(ForkJoinPool pool, RecordFormat format, long chunkSize,
+                             Supplier<R> accumulator, BiConsumer<R, RecordView> mapper, BinaryOperator<R> combiner) {
+        if(chunkSize <= 0 || chunkSize > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("chunkSize=" + chunkSize);
+        }
+        this.pool = pool;
+        this.format = format;
+        this.chunkSize = chunkSize;
+        this.accumulator = accumulator;
+        this.mapper = mapper;
+        this.combiner = combiner;
+    }
+
+    public R reduce(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return pool.invoke(new ChunkTask(channel, 0, channel.size()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private final class ChunkTask extends RecursiveTask<R> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        ChunkTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected R compute() {
+            try {
+                if(end - start > chunkSize){
+                    long mid = format.align(channel, start + (end - start) / 2, end);
+                    if(mid > start && mid < end){
+                        ChunkTask right = new ChunkTask(channel, mid, end);
+                        right.fork();
+                        R left = new ChunkTask(channel, start, mid).compute();
+                        return combiner.apply(left, right.join());
+                    }
+                    if(end - start > Integer.MAX_VALUE){
+                        throw new IllegalStateException("单条记录超过 2GB: [" + start + ", " + end + ")");
+                    }
+                }
+                return map();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private R map() throws IOException {
+            R acc = accumulator.get();
+            if(end > start){
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                RecordView view = new RecordView(buffer);
+                format.forEach(buffer, view, record -> mapper.accept(acc, record));
+            }
+            return acc;
+        }
+    }
+}
+
+/**
+ * 记录的切分方式：按换行符或者固定宽度
+ */
+interface RecordFormat {
+    // 返回 pos 处或者之后第一条记录的起始位置，没有则返回 end
+    long align(FileChannel channel, long pos, long end) throws IOException;
+
+    // 依次把 buffer 中的每条记录设置到 view 上交给 consumer
+    void forEach(ByteBuffer buffer, RecordView view, Consumer<RecordView> consumer);
+
+    static RecordFormat lines(){
+        return LineFormat.INSTANCE;
+    }
+
+    static RecordFormat fixedWidth(int width){
+        return new FixedWidthFormat(width);
+    }
+}
+
+// 以 '\n' 结尾的记录，记录内容不包含行尾的 "\n" / "\r\n"，最后一行可以没有换行符
+final class LineFormat implements RecordFormat {
+    static final LineFormat INSTANCE = new LineFormat();
+
+    private static final int PROBE = 4096;
+
+    @Override
+    public long align(FileChannel channel, long pos, long end) throws IOException {
+        // pos 前一个字节是换行符时 pos 就是记录开头，否则向后找下一个换行符
+        ByteBuffer probe = ByteBuffer.allocate(PROBE);
+        long p = pos - 1;
+        while(p < end){
+            probe.clear();
+            int n = channel.read(probe, p);
+            if(n <= 0){
+                return end;
+            }
+            for (int i = 0; i < n; i++) {
+                if(probe.get(i) == '\n'){
+                    return Math.min(end, p + i + 1);
+                }
+            }
+            p += n;
+        }
+        return end;
+    }
+
+    @Override
+    public void forEach(ByteBuffer buffer, RecordView view, Consumer<RecordView> consumer) {
+        int limit = buffer.limit();
+        int from = 0;
+        for (int i = 0; i < limit; i++) {
+            if(buffer.get(i) == '\n'){
+                int to = i > from && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                consumer.accept(view.set(from, to - from));
+                from = i + 1;
+            }
+        }
+        if(from < limit){
+            consumer.accept(view.set(from, limit - from));
+        }
+    }
+}
+
+// 每条记录固定 width 个字节，分割点向下对齐到 width 的整数倍
+final class FixedWidthFormat implements RecordFormat {
+    private final int width;
+
+    FixedWidthFormat(int width) {
+        if(width <= 0){
+            throw new IllegalArgumentException("width=" + width);
+        }
+        this.width = width;
+    }
+
+    @Override
+    public long align(FileChannel channel, long pos, long end) {
+        return pos - pos % width;
+    }
+
+    @Override
+    public void forEach(ByteBuffer buffer, RecordView view, Consumer<RecordView> consumer) {
+        int limit = buffer.limit();
+        for (int from = 0; from + width <= limit; from += width) {
+            consumer.accept(view.set(from, width));
+        }
+    }
+}
+
+/**
+ * 映射区域上一条记录的只读视图，按下标直接读 buffer，不复制字节、不创建 String
+ * 同一个块里的所有记录复用同一个视图对象
+ */
+final class RecordView {
+    private final ByteBuffer buffer;
+    private int offset;
+    private int length;
+
+    RecordView(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    RecordView set(int offset, int length){
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    public int length(){
+        return length;
+    }
+
+    public byte byteAt(int index){
+        if(index < 0 || index >= length){
+            throw new IndexOutOfBoundsException(index);
+        }
+        return buffer.get(offset + index);
+    }
+
+    // 从 from 开始第一次出现 b 的位置，没有返回 -1
+    public int indexOf(byte b, int from){
+        for (int i = Math.max(0, from); i < length; i++) {
+            if(buffer.get(offset + i) == b){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int lastIndexOf(byte b){
+        for (int i = length - 1; i >= 0; i--) {
+            if(buffer.get(offset + i) == b){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // 解析 [from, to) 中的十进制整数，可以带负号
+    public long parseLong(int from, int to){
+        if(from < 0 || to > length || from >= to){
+            throw new NumberFormatException("range [" + from + ", " + to + ") of length " + length);
+        }
+        boolean negative = buffer.get(offset + from) == '-';
+        int i = negative ? from + 1 : from;
+        if(i == to){
+            throw new NumberFormatException("no digits");
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = buffer.get(offset + i) - '0';
+            if(digit < 0 || digit > 9){
+                throw new NumberFormatException("not a digit at " + i);
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    // 比较 [from, from + bytes.length) 是否等于 bytes
+    public boolean regionMatches(int from, byte[] bytes){
+        if(from < 0 || from + bytes.length > length){
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if(buffer.get(offset + from + i) != bytes[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 只在需要保留内容时调用，会复制字节
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,856 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+@Slf4j(topic = "c.d24_parallel_sort")
+public class d24_parallel_sort {
+    record Order(long id, double amount) {
+    }
+
+    public static void main(String[] args) {
+        ParallelSorter sorter = new ParallelSorter(ForkJoinPool.commonPool());
+        int n = 5_000_000;
+        SplittableRandom random = new SplittableRandom(42);
+        long[] data = random.longs(n).toArray();
+
+        long[] expected = data.clone();
+        long start = System.nanoTime();
+        Arrays.parallelSort(expected);
+        log.debug("Arrays.parallelSort {}ms", (System.nanoTime() - start) / 1000_000);
+
+        long[] merged = data.clone();
+        start = System.nanoTime();
+        sorter.mergeSort(merged);
+        log.debug("mergeSort {}ms，结果{}", (System.nanoTime() - start) / 1000_000, Arrays.equals(merged, expected) ? "正确" : "错误");
+
+        // 少数取值占了大部分元素，相同的值进入等值桶，不需要再排序
+        long[] skewed = new long[n];
+        for (int i = 0; i < n; i++) {
+            skewed[i] = random.nextInt(10) < 7 ? random.nextInt(4) : random.nextLong();
+        }
+        long[] skewedExpected = skewed.clone();
+        Arrays.parallelSort(skewedExpected);
+        start = System.nanoTime();
+        sorter.sampleSort(skewed);
+        log.debug("sampleSort 偏斜输入 {}ms，结果{}", (System.nanoTime() - start) / 1000_000,
+                Arrays.equals(skewed, skewedExpected) ? "正确" : "错误");
+
+        double[] doubles = random.doubles(n, -1, 1).toArray();
+        doubles[0] = Double.NaN;
+        doubles[1] = -0.0;
+        double[] doublesExpected = doubles.clone();
+        Arrays.sort(doublesExpected);
+        sorter.sampleSort(doubles);
+        log.debug("double 排序{}", Arrays.equals(doubles, doublesExpected) ? "正确" : "错误");
+
+        // 对象按 key 排序，比较的是提取出来的 long，相同 key 保持原来的顺序
+        Order[] orders = new Order[n];
+        for (int i = 0; i < n; i++) {
+            orders[i] = new Order(i, random.nextInt(1000) / 10.0);
+        }
+        start = System.nanoTime();
+        sorter.sortByDoubleKey(orders, Order::amount);
+        boolean stable = true;
+        for (int i = 1; i < n; i++) {
+            stable &= orders[i - 1].amount() < orders[i].amount()
+                    || orders[i - 1].amount() == orders[i].amount() && orders[i - 1].id() < orders[i].id();
+        }
+        log.debug("sortByDoubleKey {}ms，{}", (System.nanoTime() - start) / 1000_000, stable ? "有序且稳定" : "错误");
+    }
+}
+
+/**
+ * ForkJoinPool 上的并行排序
+ * mergeSort：数组和同样大小的 scratch 两个缓冲区来回归并，整个排序只分配一次 scratch，也可以由调用者传入复用；
+ * 切到 LEAF 个元素（long 是 64KB，放得进 L2）后用 Arrays.sort 顺序排序，
+ * 归并本身也是并行的：较长的一段取中点，在另一段里二分查找分割位置，两半分别归并；
+ * 两段已经整体有序或者整体逆序时直接复制，已排序和逆序的输入几乎不做比较
+ * sampleSort：随机抽样选出分割点，每个分割点额外有一个等值桶，大量重复的值（Zipf 分布）直接进入等值桶，不需要再排序；
+ * 各块并行计数、并行分发到 scratch，再并行地对每个桶排序写回
+ * double 先映射成保持顺序的 long（和 Double.compare 的顺序一致，-0.0 在 0.0 前面，NaN 在最后）再排序
+ * 对象按 key 排序时先提取 long key，排序 key 并带着下标，最后按下标重排对象，
+ * 比较都是 long 的比较，不经过 Comparator；这个排序是稳定的
+ */
+class ParallelSorter {
+    // 叶子排序的元素个数
+    static final int LEAF = 1 << 13;
+    // 小于这个长度的归并顺序执行
+    static final int MERGE_GRAIN = 1 << 13;
+    // 每个桶抽样的个数
+    static final int OVERSAMPLE = 32;
+    private static final int INSERTION = 32;
+
+    private final ForkJoinPool pool;
+
+    public ParallelSorter(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // ---------------- merge sort ----------------
+
+    public void mergeSort(long[] a){
+        mergeSort(a, a.length <= LEAF ? null : new long[a.length]);
+    }
+
+    // scratch 至少和 a 一样长，可以在多次排序之间复用
+    public void mergeSort(long[] a, long[] scratch){
+        if(sequential(a.length)){
+            Arrays.sort(a);
+            return;
+        }
+        checkScratch(a.length, scratch.length);
+        pool.invoke(new LongMergeSort(a, scratch, 0, a.length, true));
+    }
+
+    public void mergeSort(int[] a){
+        mergeSort(a, a.length <= LEAF ? null : new int[a.length]);
+    }
+
+    public void mergeSort(int[] a, int[] scratch){
+        if(sequential(a.length)){
+            Arrays.sort(a);
+            return;
+        }
+        checkScratch(a.length, scratch.length);
+        pool.invoke(new IntMergeSort(a, scratch, 0, a.length, true));
+    }
+
+    public void mergeSort(double[] a){
+        if(sequential(a.length)){
+            Arrays.sort(a);
+            return;
+        }
+        long[] keys = toSortableLongs(a);
+        mergeSort(keys);
+        fromSortableLongs(keys, a);
+    }
+
+    // ---------------- sample sort ----------------
+
+    public void sampleSort(long[] a){
+        if(sequential(a.length)){
+            Arrays.sort(a);
+            return;
+        }
+        int n = a.length;
+        long[] splitters = longSplitters(a);
+        int k = splitters.length;
+        int buckets = 2 * k + 1;
+        int chunks = chunks(n);
+        int chunkSize = (n + chunks - 1) / chunks;
+        int[][] counts = new int[chunks][buckets];
+        // 1. 每块统计落入每个桶的个数
+        forEach(chunks, c -> {
+            int[] count = counts[c];
+            for (int i = c * chunkSize, end = Math.min(n, i + chunkSize); i < end; i++) {
+                count[bucketOf(splitters, a[i])]++;
+            }
+        });
+        // 2. 桶优先、块其次计算每块在每个桶中的写入位置
+        int[] bucketStart = new int[buckets + 1];
+        offsets(counts, bucketStart);
+        // 3. 并行分发到 scratch
+        long[] w = new long[n];
+        forEach(chunks, c -> {
+            int[] next = counts[c];
+            for (int i = c * chunkSize, end = Math.min(n, i + chunkSize); i < end; i++) {
+                w[next[bucketOf(splitters, a[i])]++] = a[i];
+            }
+        });
+        // 4. 每个桶写回原数组，等值桶直接填充
+        forEach(buckets, b -> {
+            int from = bucketStart[b], to = bucketStart[b + 1];
+            if((b & 1) == 1){
+                Arrays.fill(a, from, to, splitters[b >> 1]);
+            }else{
+                System.arraycopy(w, from, a, from, to - from);
+                Arrays.sort(a, from, to);
+            }
+        });
+    }
+
+    public void sampleSort(int[] a){
+        if(sequential(a.length)){
+            Arrays.sort(a);
+            return;
+        }
+        int n = a.length;
+        int[] splitters = intSplitters(a);
+        int k = splitters.length;
+        int buckets = 2 * k + 1;
+        int chunks = chunks(n);
+        int chunkSize = (n + chunks - 1) / chunks;
+        int[][] counts = new int[chunks][buckets];
+        forEach(chunks, c -> {
+            int[] count = counts[c];
+            for (int i = c * chunkSize, end = Math.min(n, i + chunkSize); i < end; i++) {
+                count[bucketOf(splitters, a[i])]++;
+            }
+        });
+        int[] bucketStart = new int[buckets + 1];
+        offsets(counts, bucketStart);
+        int[] w = new int[n];
+        forEach(chunks, c -> {
+            int[] next = counts[c];
+            for (int i = c * chunkSize, end = Math.min(n, i + chunkSize); i < end; i++) {
+                w[next[bucketOf(splitters, a[i])]++] = a[i];
+            }
+        });
+        forEach(buckets, b -> {
+            int from = bucketStart[b], to = bucketStart[b + 1];
+            if((b & 1) == 1){
+                Arrays.fill(a, from, to, splitters[b >> 1]);
+            }else{
+                System.arraycopy(w, from, a, from, to - from);
+                Arrays.sort(a, from, to);
+            }
+        });
+    }
+
+    public void sampleSort(double[] a){
+        if(sequential(a.length)){
+            Arrays.sort(a);
+            return;
+        }
+        long[] keys = toSortableLongs(a);
+        sampleSort(keys);
+        fromSortableLongs(keys, a);
+    }
+
+    // ---------------- 对象按 key 排序 ----------------
+
+    public <T> void sortByKey(T[] a, ToLongFunction<? super T> key){
+        int n = a.length;
+        long[] keys = new long[n];
+        forEachRange(n, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                keys[i] = key.applyAsLong(a[i]);
+            }
+        });
+        sortByKeys(a, keys);
+    }
+
+    public <T> void sortByDoubleKey(T[] a, ToDoubleFunction<? super T> key){
+        int n = a.length;
+        long[] keys = new long[n];
+        forEachRange(n, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                keys[i] = sortableLong(key.applyAsDouble(a[i]));
+            }
+        });
+        sortByKeys(a, keys);
+    }
+
+    private <T> void sortByKeys(T[] a, long[] keys){
+        int n = a.length;
+        int[] index = new int[n];
+        for (int i = 0; i < n; i++) {
+            index[i] = i;
+        }
+        long[] keyScratch = new long[n];
+        int[] indexScratch = new int[n];
+        if(sequential(n)){
+            KeyedMergeSort.sortSequential(keys, index, keyScratch, indexScratch, 0, n, true);
+        }else{
+            pool.invoke(new KeyedMergeSort(keys, index, keyScratch, indexScratch, 0, n, true));
+        }
+        Object[] copy = a.clone();
+        forEachRange(n, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                @SuppressWarnings("unchecked")
+                T t = (T) copy[index[i]];
+                a[i] = t;
+            }
+        });
+    }
+
+    // ---------------- 公共部分 ----------------
+
+    private boolean sequential(int n){
+        return n <= LEAF || pool.getParallelism() <= 1;
+    }
+
+    private static void checkScratch(int n, int scratch){
+        if(scratch < n){
+            throw new IllegalArgumentException("scratch 长度 " + scratch + " 小于数组长度 " + n);
+        }
+    }
+
+    // 切分给并行循环的块数，约为并行度的 4 倍
+    private int chunks(int n){
+        return Math.max(1, Math.min(n / LEAF, pool.getParallelism() << 2));
+    }
+
+    // counts[c][b] 改为块 c 在桶 b 中的起始写入位置，bucketStart[b] 是桶 b 的起始位置
+    private static void offsets(int[][] counts, int[] bucketStart){
+        int buckets = bucketStart.length - 1;
+        int offset = 0;
+        for (int b = 0; b < buckets; b++) {
+            bucketStart[b] = offset;
+            for (int[] count : counts) {
+                int c = count[b];
+                count[b] = offset;
+                offset += c;
+            }
+        }
+        bucketStart[buckets] = offset;
+    }
+
+    // 从排好序的样本中等间隔取分割点并去重
+    private long[] longSplitters(long[] a){
+        int k = Math.max(1, pool.getParallelism() << 2) - 1;
+        SplittableRandom random = new SplittableRandom(a.length);
+        long[] sample = new long[(k + 1) * OVERSAMPLE];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = a[random.nextInt(a.length)];
+        }
+        Arrays.sort(sample);
+        long[] splitters = new long[Math.max(1, k)];
+        int m = 0;
+        for (int i = 1; i <= splitters.length; i++) {
+            long s = sample[i * OVERSAMPLE - 1];
+            if(m == 0 || splitters[m - 1] != s){
+                splitters[m++] = s;
+            }
+        }
+        return Arrays.copyOf(splitters, m);
+    }
+
+    private int[] intSplitters(int[] a){
+        int k = Math.max(1, pool.getParallelism() << 2) - 1;
+        SplittableRandom random = new SplittableRandom(a.length);
+        int[] sample = new int[(k + 1) * OVERSAMPLE];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = a[random.nextInt(a.length)];
+        }
+        Arrays.sort(sample);
+        int[] splitters = new int[Math.max(1, k)];
+        int m = 0;
+        for (int i = 1; i <= splitters.length; i++) {
+            int s = sample[i * OVERSAMPLE - 1];
+            if(m == 0 || splitters[m - 1] != s){
+                splitters[m++] = s;
+            }
+        }
+        return Arrays.copyOf(splitters, m);
+    }
+
+    // 桶 2i 放 (s[i-1], s[i]) 之间的值，桶 2i+1 放等于 s[i] 的值，最后一个桶放大于所有分割点的值
+    private static int bucketOf(long[] splitters, long v){
+        int lo = 0, hi = splitters.length;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(splitters[mid] < v){
+                lo = mid + 1;
+            }else{
+                hi = mid;
+            }
+        }
+        return lo < splitters.length && splitters[lo] == v ? 2 * lo + 1 : 2 * lo;
+    }
+
+    private static int bucketOf(int[] splitters, int v){
+        int lo = 0, hi = splitters.length;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(splitters[mid] < v){
+                lo = mid + 1;
+            }else{
+                hi = mid;
+            }
+        }
+        return lo < splitters.length && splitters[lo] == v ? 2 * lo + 1 : 2 * lo;
+    }
+
+    // 负数翻转除符号位以外的位，得到按 long 比较和 Double.compare 一致的顺序
+    static long sortableLong(double d){
+        long bits = Double.doubleToLongBits(d);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    static double fromSortableLong(long bits){
+        return Double.longBitsToDouble(bits ^ ((bits >> 63) & Long.MAX_VALUE));
+    }
+
+    private long[] toSortableLongs(double[] a){
+        long[] keys = new long[a.length];
+        forEachRange(a.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                keys[i] = sortableLong(a[i]);
+            }
+        });
+        return keys;
+    }
+
+    private void fromSortableLongs(long[] keys, double[] a){
+        forEachRange(a.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                a[i] = fromSortableLong(keys[i]);
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface RangeBody {
+        void apply(int from, int to);
+    }
+
+    // 把 [0, n) 切成若干块并行处理
+    private void forEachRange(int n, RangeBody body){
+        int chunks = chunks(n);
+        int chunkSize = (n + chunks - 1) / chunks;
+        forEach(chunks, c -> body.apply(c * chunkSize, Math.min(n, c * chunkSize + chunkSize)));
+    }
+
+    // 并行执行 body(0) .. body(count - 1)
+    private void forEach(int count, IntConsumer body){
+        if(count <= 1 || pool.getParallelism() <= 1){
+            for (int i = 0; i < count; i++) {
+                body.accept(i);
+            }
+            return;
+        }
+        pool.invoke(new ForEachTask(0, count, body));
+    }
+
+    private static final class ForEachTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final IntConsumer body;
+
+        ForEachTask(int from, int to, IntConsumer body) {
+            this.from = from;
+            this.to = to;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from == 1){
+                body.accept(from);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            ForEachTask right = new ForEachTask(mid, to, body);
+            right.fork();
+            new ForEachTask(from, mid, body).compute();
+            if(right.tryUnfork()){
+                right.compute();
+            }else{
+                right.join();
+            }
+        }
+    }
+
+    // 在两个缓冲区之间来回归并，intoA 表示 [lo, hi) 排好后放在 a 里还是 w 里
+    private static final class LongMergeSort extends RecursiveAction {
+        private final long[] a;
+        private final long[] w;
+        private final int lo;
+        private final int hi;
+        private final boolean intoA;
+
+        LongMergeSort(long[] a, long[] w, int lo, int hi, boolean intoA) {
+            this.a = a;
+            this.w = w;
+            this.lo = lo;
+            this.hi = hi;
+            this.intoA = intoA;
+        }
+
+        @Override
+        protected void compute() {
+            if(hi - lo <= LEAF){
+                Arrays.sort(a, lo, hi);
+                if(!intoA){
+                    System.arraycopy(a, lo, w, lo, hi - lo);
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            // 两半排好后放在另一个缓冲区里，再归并到目标缓冲区
+            LongMergeSort right = new LongMergeSort(a, w, mid, hi, !intoA);
+            right.fork();
+            new LongMergeSort(a, w, lo, mid, !intoA).compute();
+            if(right.tryUnfork()){
+                right.compute();
+            }else{
+                right.join();
+            }
+            long[] src = intoA ? w : a;
+            long[] dst = intoA ? a : w;
+            new LongMerge(src, lo, mid, mid, hi, dst, lo).compute();
+        }
+    }
+
+    // 把 src 的 [lo1, hi1) 和 [lo2, hi2) 归并到 dst 的 d 开始的位置，相等时左边在前
+    private static final class LongMerge extends RecursiveAction {
+        private final long[] src;
+        private final int lo1, hi1, lo2, hi2;
+        private final long[] dst;
+        private final int d;
+
+        LongMerge(long[] src, int lo1, int hi1, int lo2, int hi2, long[] dst, int d) {
+            this.src = src;
+            this.lo1 = lo1;
+            this.hi1 = hi1;
+            this.lo2 = lo2;
+            this.hi2 = hi2;
+            this.dst = dst;
+            this.d = d;
+        }
+
+        @Override
+        protected void compute() {
+            int n1 = hi1 - lo1, n2 = hi2 - lo2;
+            if(n1 == 0 || n2 == 0 || src[hi1 - 1] <= src[lo2]){
+                // 整体有序
+                System.arraycopy(src, lo1, dst, d, n1);
+                System.arraycopy(src, lo2, dst, d + n1, n2);
+                return;
+            }
+            if(src[hi2 - 1] < src[lo1]){
+                // 整体逆序
+                System.arraycopy(src, lo2, dst, d, n2);
+                System.arraycopy(src, lo1, dst, d + n2, n1);
+                return;
+            }
+            if(n1 + n2 <= MERGE_GRAIN){
+                merge();
+                return;
+            }
+            int m1, m2;
+            if(n1 >= n2){
+                m1 = (lo1 + hi1) >>> 1;
+                m2 = lowerBound(src, lo2, hi2, src[m1]);
+            }else{
+                m2 = (lo2 + hi2) >>> 1;
+                m1 = upperBound(src, lo1, hi1, src[m2]);
+            }
+            LongMerge right = new LongMerge(src, m1, hi1, m2, hi2, dst, d + (m1 - lo1) + (m2 - lo2));
+            right.fork();
+            new LongMerge(src, lo1, m1, lo2, m2, dst, d).compute();
+            if(right.tryUnfork()){
+                right.compute();
+            }else{
+                right.join();
+            }
+        }
+
+        private void merge(){
+            int i = lo1, j = lo2, k = d;
+            while(i < hi1 && j < hi2){
+                dst[k++] = src[j] < src[i] ? src[j++] : src[i++];
+            }
+            System.arraycopy(src, i, dst, k, hi1 - i);
+            System.arraycopy(src, j, dst, k + hi1 - i, hi2 - j);
+        }
+    }
+
+    // 第一个 >= v 的位置
+    private static int lowerBound(long[] a, int lo, int hi, long v){
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(a[mid] < v){
+                lo = mid + 1;
+            }else{
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // 第一个 > v 的位置
+    private static int upperBound(long[] a, int lo, int hi, long v){
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(a[mid] <= v){
+                lo = mid + 1;
+            }else{
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static final class IntMergeSort extends RecursiveAction {
+        private final int[] a;
+        private final int[] w;
+        private final int lo;
+        private final int hi;
+        private final boolean intoA;
+
+        IntMergeSort(int[] a, int[] w, int lo, int hi, boolean intoA) {
+            this.a = a;
+            this.w = w;
+            this.lo = lo;
+            this.hi = hi;
+            this.intoA = intoA;
+        }
+
+        @Override
+        protected void compute() {
+            if(hi - lo <= LEAF){
+                Arrays.sort(a, lo, hi);
+                if(!intoA){
+                    System.arraycopy(a, lo, w, lo, hi - lo);
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            IntMergeSort right = new IntMergeSort(a, w, mid, hi, !intoA);
+            right.fork();
+            new IntMergeSort(a, w, lo, mid, !intoA).compute();
+            if(right.tryUnfork()){
+                right.compute();
+            }else{
+                right.join();
+            }
+            int[] src = intoA ? w : a;
+            int[] dst = intoA ? a : w;
+            new IntMerge(src, lo, mid, mid, hi, dst, lo).compute();
+        }
+    }
+
+    private static final class IntMerge extends RecursiveAction {
+        private final int[] src;
+        private final int lo1, hi1, lo2, hi2;
+        private final int[] dst;
+        private final int d;
+
+        IntMerge(int[] src, int lo1, int hi1, int lo2, int hi2, int[] dst, int d) {
+            this.src = src;
+            this.lo1 = lo1;
+            this.hi1 = hi1;
+            this.lo2 = lo2;
+            this.hi2 = hi2;
+            this.dst = dst;
+            this.d = d;
+        }
+
+        @Override
+        protected void compute() {
+            int n1 = hi1 - lo1, n2 = hi2 - lo2;
+            if(n1 == 0 || n2 == 0 || src[hi1 - 1] <= src[lo2]){
+                System.arraycopy(src, lo1, dst, d, n1);
+                System.arraycopy(src, lo2, dst, d + n1, n2);
+                return;
+            }
+            if(src[hi2 - 1] < src[lo1]){
+                System.arraycopy(src, lo2, dst, d, n2);
+                System.arraycopy(src, lo1, dst, d + n2, n1);
+                return;
+            }
+            if(n1 + n2 <= MERGE_GRAIN){
+                merge();
+                return;
+            }
+            int m1, m2;
+            if(n1 >= n2){
+                m1 = (lo1 + hi1) >>> 1;
+                m2 = lowerBound(src, lo2, hi2, src[m1]);
+            }else{
+                m2 = (lo2 + hi2) >>> 1;
+                m1 = upperBound(src, lo1, hi1, src[m2]);
+            }
+            IntMerge right = new IntMerge(src, m1, hi1, m2, hi2, dst, d + (m1 - lo1) + (m2 - lo2));
+            right.fork();
+            new IntMerge(src, lo1, m1, lo2, m2, dst, d).compute();
+            if(right.tryUnfork()){
+                right.compute();
+            }else{
+                right.join();
+            }
+        }
+
+        private void merge(){
+            int i = lo1, j = lo2, k = d;
+            while(i < hi1 && j < hi2){
+                dst[k++] = src[j] < src[i] ? src[j++] : src[i++];
+            }
+            System.arraycopy(src, i, dst, k, hi1 - i);
+            System.arraycopy(src, j, dst, k + hi1 - i, hi2 - j);
+        }
+    }
+
+    private static int lowerBound(int[] a, int lo, int hi, int v){
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(a[mid] < v){
+                lo = mid + 1;
+            }else{
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int upperBound(int[] a, int lo, int hi, int v){
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(a[mid] <= v){
+                lo = mid + 1;
+            }else{
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // key 带着下标一起归并，叶子用稳定的插入排序 + 归并，整体稳定
+    private static final class KeyedMergeSort extends RecursiveAction {
+        private final long[] k;
+        private final int[] p;
+        private final long[] kw;
+        private final int[] pw;
+        private final int lo;
+        private final int hi;
+        private final boolean intoA;
+
+        KeyedMergeSort(long[] k, int[] p, long[] kw, int[] pw, int lo, int hi, boolean intoA) {
+            this.k = k;
+            this.p = p;
+            this.kw = kw;
+            this.pw = pw;
+            this.lo = lo;
+            this.hi = hi;
+            this.intoA = intoA;
+        }
+
+        @Override
+        protected void compute() {
+            if(hi - lo <= LEAF){
+                sortSequential(k, p, kw, pw, lo, hi, intoA);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            KeyedMergeSort right = new KeyedMergeSort(k, p, kw, pw, mid, hi, !intoA);
+            right.fork();
+            new KeyedMergeSort(k, p, kw, pw, lo, mid, !intoA).compute();
+            if(right.tryUnfork()){
+                right.compute();
+            }else{
+                right.join();
+            }
+            if(intoA){
+                new KeyedMerge(kw, pw, lo, mid, mid, hi, k, p, lo).compute();
+            }else{
+                new KeyedMerge(k, p, lo, mid, mid, hi, kw, pw, lo).compute();
+            }
+        }
+
+        static void sortSequential(long[] k, int[] p, long[] kw, int[] pw, int lo, int hi, boolean intoA){
+            if(hi - lo <= INSERTION){
+                for (int i = lo + 1; i < hi; i++) {
+                    long key = k[i];
+                    int index = p[i];
+                    int j = i - 1;
+                    while(j >= lo && k[j] > key){
+                        k[j + 1] = k[j];
+                        p[j + 1] = p[j];
+                        j--;
+                    }
+                    k[j + 1] = key;
+                    p[j + 1] = index;
+                }
+                if(!intoA){
+                    System.arraycopy(k, lo, kw, lo, hi - lo);
+                    System.arraycopy(p, lo, pw, lo, hi - lo);
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            sortSequential(k, p, kw, pw, lo, mid, !intoA);
+            sortSequential(k, p, kw, pw, mid, hi, !intoA);
+            if(intoA){
+                KeyedMerge.merge(kw, pw, lo, mid, mid, hi, k, p, lo);
+            }else{
+                KeyedMerge.merge(k, p, lo, mid, mid, hi, kw, pw, lo);
+            }
+        }
+    }
+
+    private static final class KeyedMerge extends RecursiveAction {
+        private final long[] k;
+        private final int[] p;
+        private final int lo1, hi1, lo2, hi2;
+        private final long[] dk;
+        private final int[] dp;
+        private final int d;
+
+        KeyedMerge(long[] k, int[] p, int lo1, int hi1, int lo2, int hi2, long[] dk, int[] dp, int d) {
+            this.k = k;
+            this.p = p;
+            this.lo1 = lo1;
+            this.hi1 = hi1;
+            this.lo2 = lo2;
+            this.hi2 = hi2;
+            this.dk = dk;
+            this.dp = dp;
+            this.d = d;
+        }
+
+        @Override
+        protected void compute() {
+            int n1 = hi1 - lo1, n2 = hi2 - lo2;
+            if(n1 + n2 <= MERGE_GRAIN || n1 == 0 || n2 == 0 || k[hi1 - 1] <= k[lo2] || k[hi2 - 1] < k[lo1]){
+                merge(k, p, lo1, hi1, lo2, hi2, dk, dp, d);
+                return;
+            }
+            int m1, m2;
+            if(n1 >= n2){
+                m1 = (lo1 + hi1) >>> 1;
+                m2 = lowerBound(k, lo2, hi2, k[m1]);
+            }else{
+                m2 = (lo2 + hi2) >>> 1;
+                m1 = upperBound(k, lo1, hi1, k[m2]);
+            }
+            KeyedMerge right = new KeyedMerge(k, p, m1, hi1, m2, hi2, dk, dp, d + (m1 - lo1) + (m2 - lo2));
+            right.fork();
+            new KeyedMerge(k, p, lo1, m1, lo2, m2, dk, dp, d).compute();
+            if(right.tryUnfork()){
+                right.compute();
+            }else{
+                right.join();
+            }
+        }
+
+        static void merge(long[] k, int[] p, int lo1, int hi1, int lo2, int hi2, long[] dk, int[] dp, int d){
+            int i = lo1, j = lo2, o = d;
+            if(i < hi1 && j < hi2 && k[hi2 - 1] < k[lo1]){
+                // 整体逆序，右边严格小于左边，先放右边仍然是稳定的
+                System.arraycopy(k, lo2, dk, o, hi2 - lo2);
+                System.arraycopy(p, lo2, dp, o, hi2 - lo2);
+                o += hi2 - lo2;
+                System.arraycopy(k, lo1, dk, o, hi1 - lo1);
+                System.arraycopy(p, lo1, dp, o, hi1 - lo1);
+                return;
+            }
+            // 整体有序时跳过比较，直接复制
+            if(i < hi1 && j < hi2 && k[hi1 - 1] > k[lo2]){
+                while(i < hi1 && j < hi2){
+                    if(k[j] < k[i]){
+                        dk[o] = k[j];
+                        dp[o++] = p[j++];
+                    }else{
+                        dk[o] = k[i];
+                        dp[o++] = p[i++];
+                    }
+                }
+            }
+            System.arraycopy(k, i, dk, o, hi1 - i);
+            System.arraycopy(p, i, dp, o, hi1 - i);
+            o += hi1 - i;
+            System.arraycopy(k, j, dk, o, hi2 - j);
+            System.arraycopy(p, j, dp, o, hi2 - j);
+        }
+    }
+}
@@ -0,0 +1,617 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+@Slf4j(topic = "c.d25_task_dag")
+public class d25_task_dag {
+    public static void main(String[] args) throws InterruptedException {
+        ThreadPool threadPool = new ThreadPool(
+                3,
+                1000, TimeUnit.MILLISECONDS,
+                100,
+                (queue, task) -> queue.put(task));
+        DagScheduler scheduler = new DagScheduler(threadPool);
+
+        // 1. d8_JUC.d4_CountDownLatchTest 的例子：汇总任务在三个任务都结束后才提交，不占用线程等待
+        TaskGraph graph = new TaskGraph();
+        TaskNode a = graph.add("a", () -> sleep(1000));
+        TaskNode b = graph.add("b", () -> sleep(1500));
+        TaskNode c = graph.add("c", () -> sleep(2000));
+        graph.add("汇总", () -> log.debug("三个任务都结束了"), a, b, c);
+        DagExecution execution = scheduler.execute(graph);
+        execution.await(10, TimeUnit.SECONDS);
+        for (DagExecution.NodeTiming timing : execution.timings()) {
+            log.debug("{}", timing);
+        }
+
+        // 2. 失败向下游传播：load 失败，依赖它的节点被跳过，不相关的分支照常执行
+        graph = new TaskGraph();
+        TaskNode load = graph.add("load", () -> {
+            throw new IllegalStateException("数据源不可用");
+        });
+        TaskNode transform = graph.add("transform", () -> log.debug("不会执行"), load);
+        graph.add("report", () -> log.debug("不会执行"), transform);
+        graph.add("cleanup", () -> log.debug("cleanup 照常执行"));
+        execution = scheduler.execute(graph);
+        try {
+            execution.completion().get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            log.debug("执行失败 {}", e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            log.debug("执行超时");
+        }
+        for (DagExecution.NodeTiming timing : execution.timings()) {
+            log.debug("{} {}", timing.name(), timing.state());
+        }
+
+        // 3. 1 万个节点的分层随机 DAG，每个节点依赖上一层的几个节点
+        graph = new TaskGraph();
+        SplittableRandom random = new SplittableRandom(7);
+        List<TaskNode> previous = new ArrayList<>();
+        for (int layer = 0; layer < 100; layer++) {
+            List<TaskNode> current = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                TaskNode[] deps = new TaskNode[previous.isEmpty() ? 0 : 3];
+                for (int d = 0; d < deps.length; d++) {
+                    deps[d] = previous.get(random.nextInt(previous.size()));
+                }
+                long work = random.nextInt(20_000);
+                current.add(graph.add("n" + layer + "_" + i, work, () -> spin(work), deps));
+            }
+            previous = current;
+        }
+        long start = System.nanoTime();
+        execution = scheduler.execute(graph);
+        execution.await(1, TimeUnit.MINUTES);
+        log.debug("{} 个节点用时 {}ms，关键路径 {} 个节点", graph.size(),
+                (System.nanoTime() - start) / 1000_000, execution.criticalPath().size());
+        threadPool.shutdown();
+    }
+
+    private static void sleep(long millis){
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void spin(long iterations){
+        long x = 0;
+        for (long i = 0; i < iterations; i++) {
+            x += i ^ x;
+        }
+        if(x == 42){
+            log.debug("{}", x);
+        }
+    }
+}
+
+/**
+ * 任务依赖图，节点只能依赖已经加入的节点，所以图一定没有环，加入的顺序就是一个拓扑序
+ * cost 是节点的估计耗时（单位自定，比如上一次运行的毫秒数），只用来计算关键路径优先级
+ */
+class TaskGraph {
+    private final List<TaskNode> nodes = new ArrayList<>();
+
+    public TaskNode add(String name, Runnable action, TaskNode... dependencies){
+        return add(name, 1, action, dependencies);
+    }
+
+    public TaskNode add(String name, long cost, Runnable action, TaskNode... dependencies){
+        if(cost < 0){
+            throw new IllegalArgumentException("cost=" + cost);
+        }
+        int[] deps = new int[dependencies.length];
+        for (int i = 0; i < deps.length; i++) {
+            if(dependencies[i].graph != this){
+                throw new IllegalArgumentException("依赖 " + dependencies[i].name + " 不属于这个图");
+            }
+            deps[i] = dependencies[i].id;
+        }
+        TaskNode node = new TaskNode(this, nodes.size(), name, cost, action, deps);
+        nodes.add(node);
+        return node;
+    }
+
+    public int size(){
+        return nodes.size();
+    }
+
+    List<TaskNode> nodes(){
+        return Collections.unmodifiableList(nodes);
+    }
+}
+
+final class TaskNode {
+    final TaskGraph graph;
+    final int id;
+    final String name;
+    final long cost;
+    final Runnable action;
+    final int[] dependencies;
+
+    TaskNode(TaskGraph graph, int id, String name, long cost, Runnable action, int[] dependencies) {
+        this.graph = graph;
+        this.id = id;
+        this.name = name;
+        this.cost = cost;
+        this.action = action;
+        this.dependencies = dependencies;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
+
+/**
+ * 在 ThreadPool 上按依赖关系执行 TaskGraph
+ * 每个节点一个原子的待完成依赖计数，节点结束时把每个后继的计数减一，减到 0 的后继立即进入就绪队列，
+ * 没有任何线程阻塞在 latch 上等待依赖，每条边只有一次原子减
+ * 就绪队列按关键路径长度排序（节点到终点的最长 cost 之和），同时交给线程池的节点不超过 maxInFlight 个，
+ * 默认等于线程池的最大线程数，其余留在就绪队列里，所以关键路径上的节点总是先执行
+ * failFast 为 true 时第一个失败的节点会取消整个执行
+ */
+class DagScheduler {
+    private final ThreadPool pool;
+    private final int maxInFlight;
+    private final boolean failFast;
+
+    public DagScheduler(ThreadPool pool) {
+        this(pool, pool.getMaxSize(), false);
+    }
+
+    public DagScheduler(ThreadPool pool, int maxInFlight, boolean failFast) {
+        if(maxInFlight <= 0){
+            throw new IllegalArgumentException("maxInFlight=" + maxInFlight);
+        }
+        this.pool = pool;
+        this.maxInFlight = maxInFlight;
+        this.failFast = failFast;
+    }
+
+    // 立即返回，图在调用之后再加入的节点不会执行
+    public DagExecution execute(TaskGraph graph){
+        DagExecution execution = new DagExecution(graph.nodes(), pool, maxInFlight, failFast);
+        execution.start();
+        return execution;
+    }
+}
+
+/**
+ * 一次 DAG 执行
+ * 节点失败后，所有直接或间接依赖它的节点都是 SKIPPED，记录的异常是上游的异常；
+ * 取消的节点（cancel(node) 或者整个执行被 cancel）和它的下游都是 CANCELLED，已经开始执行的节点不会被中断
+ * 线程池拒绝的节点（已经关闭、拒绝策略抛出异常或者丢弃任务）是 FAILED，异常是 RejectedExecutionException 或策略抛出的异常
+ * 每个节点记录就绪、开始、结束时间，执行结束后可以取出每个节点的排队时间、执行时间，以及实际的关键路径
+ */
+@Slf4j(topic = "c.DagExecution")
+class DagExecution {
+    enum NodeState {
+        WAITING, RUNNING, SUCCEEDED, FAILED, SKIPPED, CANCELLED
+    }
+
+    private static final NodeState[] STATES = NodeState.values();
+
+    record NodeTiming(String name, NodeState state, long queueNanos, long runNanos, long startOffsetNanos, Throwable error) {
+        @Override
+        public String toString() {
+            return name + " " + state + " 排队 " + queueNanos / 1000 + "us，执行 " + runNanos / 1000
+                    + "us，开始于 " + startOffsetNanos / 1000_000 + "ms" + (error == null ? "" : "，" + error);
+        }
+    }
+
+    private final TaskNode[] nodes;
+    private final ThreadPool pool;
+    private final int maxInFlight;
+    private final boolean failFast;
+
+    // 后继节点，succ[succStart[i] .. succStart[i + 1]) 是节点 i 的后继
+    private final int[] succStart;
+    private final int[] succ;
+    // 到终点的最长 cost 之和
+    private final long[] rank;
+
+    private final AtomicIntegerArray pending;
+    private final AtomicIntegerArray states;
+    // 上游失败或取消时记下后继应该进入的状态，0 表示没有
+    private final AtomicIntegerArray poison;
+    private final AtomicReferenceArray<Throwable> errors;
+    private final long[] readyAt;
+    private final long[] startAt;
+    private final long[] endAt;
+    private final AtomicInteger remaining;
+    private final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private long startNanos;
+    private volatile boolean anyCancelled;
+
+    // 下面的字段由 lock 保护
+    private final ReentrantLock lock = new ReentrantLock();
+    private final PriorityQueue<TaskNode> ready;
+    private final boolean[] cancelRequested;
+    private int inFlight;
+    private boolean cancelled;
+
+    DagExecution(List<TaskNode> graph, ThreadPool pool, int maxInFlight, boolean failFast) {
+        this.nodes = graph.toArray(new TaskNode[0]);
+        this.pool = pool;
+        this.maxInFlight = maxInFlight;
+        this.failFast = failFast;
+        int n = nodes.length;
+
+        succStart = new int[n + 1];
+        for (TaskNode node : nodes) {
+            for (int d : node.dependencies) {
+                succStart[d + 1]++;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            succStart[i + 1] += succStart[i];
+        }
+        succ = new int[succStart[n]];
+        int[] fill = succStart.clone();
+        pending = new AtomicIntegerArray(n);
+        for (TaskNode node : nodes) {
+            for (int d : node.dependencies) {
+                succ[fill[d]++] = node.id;
+            }
+            pending.set(node.id, node.dependencies.length);
+        }
+        // 后继的下标一定更大，倒序一遍就能算出关键路径长度
+        rank = new long[n];
+        for (int i = n - 1; i >= 0; i--) {
+            long longest = 0;
+            for (int k = succStart[i]; k < succStart[i + 1]; k++) {
+                longest = Math.max(longest, rank[succ[k]]);
+            }
+            rank[i] = nodes[i].cost + longest;
+        }
+
+        states = new AtomicIntegerArray(n);
+        poison = new AtomicIntegerArray(n);
+        errors = new AtomicReferenceArray<>(n);
+        readyAt = new long[n];
+        startAt = new long[n];
+        endAt = new long[n];
+        remaining = new AtomicInteger(n);
+        ready = new PriorityQueue<>(Comparator.comparingLong((TaskNode t) -> -rank[t.id]).thenComparingInt(t -> t.id));
+        cancelRequested = new boolean[n];
+    }
+
+    void start(){
+        startNanos = System.nanoTime();
+        if(nodes.length == 0){
+            completion.complete(null);
+            return;
+        }
+        for (TaskNode node : nodes) {
+            if(node.dependencies.length == 0){
+                enqueue(node.id);
+            }
+        }
+        dispatch();
+    }
+
+    // 执行结束（所有节点都进入终止状态）时完成：全部成功正常完成，有失败以第一个失败的异常完成，
+    // 否则以 CancellationException 完成；返回的是副本，取消整个执行用 cancel()
+    public CompletableFuture<Void> completion(){
+        return completion.copy();
+    }
+
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            completion.get(timeout, unit);
+        } catch (ExecutionException | CancellationException e) {
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+        return true;
+    }
+
+    public boolean isDone(){
+        return completion.isDone();
+    }
+
+    public NodeState state(TaskNode node){
+        return STATES[states.get(node.id)];
+    }
+
+    public int getRemaining(){
+        return remaining.get();
+    }
+
+    // 取消还没有开始执行的节点和它的下游，节点已经开始或者结束时返回 false
+    public boolean cancel(TaskNode node){
+        boolean removed;
+        lock.lock();
+        try {
+            if(states.get(node.id) != NodeState.WAITING.ordinal() || cancelRequested[node.id]){
+                return false;
+            }
+            cancelRequested[node.id] = true;
+            removed = ready.remove(node);
+        } finally {
+            lock.unlock();
+        }
+        // 还在等待依赖的节点在依赖完成时再处理
+        if(removed){
+            settle(node.id, NodeState.CANCELLED, null);
+        }
+        return true;
+    }
+
+    // 取消所有还没有开始执行的节点
+    public void cancel(){
+        List<TaskNode> drained;
+        lock.lock();
+        try {
+            if(cancelled){
+                return;
+            }
+            cancelled = true;
+            drained = new ArrayList<>(ready);
+            ready.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (TaskNode node : drained) {
+            settle(node.id, NodeState.CANCELLED, null);
+        }
+    }
+
+    // 按节点加入的顺序返回每个节点的时间，执行结束后调用
+    public List<NodeTiming> timings(){
+        checkDone();
+        List<NodeTiming> timings = new ArrayList<>(nodes.length);
+        for (int i = 0; i < nodes.length; i++) {
+            timings.add(timing(i));
+        }
+        return timings;
+    }
+
+    // 实际的关键路径：从最后结束的节点出发，每次回到最后结束的那个依赖
+    public List<NodeTiming> criticalPath(){
+        checkDone();
+        List<NodeTiming> path = new ArrayList<>();
+        int last = -1;
+        for (int i = 0; i < nodes.length; i++) {
+            if(last < 0 || endAt[i] > endAt[last]){
+                last = i;
+            }
+        }
+        while(last >= 0){
+            path.add(timing(last));
+            int next = -1;
+            for (int d : nodes[last].dependencies) {
+                if(next < 0 || endAt[d] > endAt[next]){
+                    next = d;
+                }
+            }
+            last = next;
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    private void checkDone(){
+        if(!completion.isDone()){
+            throw new IllegalStateException("执行还没有结束，剩余 " + remaining.get() + " 个节点");
+        }
+    }
+
+    private NodeTiming timing(int i){
+        boolean ran = startAt[i] != 0;
+        return new NodeTiming(nodes[i].name, STATES[states.get(i)],
+                ran ? startAt[i] - readyAt[i] : 0,
+                ran ? endAt[i] - startAt[i] : 0,
+                ran ? startAt[i] - startNanos : 0,
+                errors.get(i));
+    }
+
+    // 依赖都完成了：放入就绪队列，返回 false 表示这个节点不需要执行（上游失败或者已取消）
+    private boolean enqueue(int i){
+        if(poison.get(i) != 0){
+            return false;
+        }
+        lock.lock();
+        try {
+            if(cancelled || cancelRequested[i]){
+                return false;
+            }
+            readyAt[i] = System.nanoTime();
+            ready.add(nodes[i]);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 在 maxInFlight 的限制内把优先级最高的就绪节点交给线程池
+    // 有节点被拒绝时再取一批，循环而不是经过 settle 递归，线程池关闭后大量就绪节点也不会让栈过深
+    private void dispatch(){
+        while(true){
+            List<TaskNode> batch = null;
+            lock.lock();
+            try {
+                while(inFlight < maxInFlight){
+                    TaskNode node = ready.poll();
+                    if(node == null){
+                        break;
+                    }
+                    inFlight++;
+                    states.set(node.id, NodeState.RUNNING.ordinal());
+                    if(batch == null){
+                        batch = new ArrayList<>();
+                    }
+                    batch.add(node);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if(batch == null || submitAll(batch)){
+                return;
+            }
+        }
+    }
+
+    // 返回 false 表示有节点被拒绝，这个节点和批次中还没提交的节点都已经按失败处理
+    private boolean submitAll(List<TaskNode> batch){
+        for (int k = 0; k < batch.size(); k++) {
+            TaskNode node = batch.get(k);
+            Throwable error;
+            try {
+                CompletableFuture<Void> future = pool.submit(() -> run(node));
+                if(!future.isDone()){
+                    // run 自己捕获所有异常，future 只有在排队时被拒绝策略丢弃才会异常完成
+                    future.exceptionally(e -> {
+                        reject(List.of(node), e);
+                        dispatch();
+                        return null;
+                    });
+                    continue;
+                }
+                if(!future.isCompletedExceptionally()){
+                    // 拒绝策略在调用线程上执行了它
+                    continue;
+                }
+                // 拒绝策略丢弃了任务
+                error = future.exceptionNow();
+            } catch (RuntimeException e) {
+                // 线程池已关闭，或者拒绝策略抛出异常
+                error = e;
+            }
+            reject(batch.subList(k, batch.size()), error);
+            return false;
+        }
+        return true;
+    }
+
+    // 已经计入 inFlight 但没有交给线程池的节点
+    private void reject(List<TaskNode> rejected, Throwable error){
+        lock.lock();
+        try {
+            inFlight -= rejected.size();
+        } finally {
+            lock.unlock();
+        }
+        for (TaskNode node : rejected) {
+            propagate(node.id, NodeState.FAILED, error);
+        }
+    }
+
+    private void run(TaskNode node){
+        startAt[node.id] = System.nanoTime();
+        Throwable error = null;
+        try {
+            node.action.run();
+        } catch (Throwable e) {
+            error = e;
+        }
+        lock.lock();
+        try {
+            inFlight--;
+        } finally {
+            lock.unlock();
+        }
+        settle(node.id, error == null ? NodeState.SUCCEEDED : NodeState.FAILED, error);
+    }
+
+    private void settle(int first, NodeState firstState, Throwable firstError){
+        propagate(first, firstState, firstError);
+        dispatch();
+    }
+
+    // 节点进入终止状态，把结果传给后继；不需要执行的后继用循环处理，长链不会递归过深
+    private void propagate(int first, NodeState firstState, Throwable firstError){
+        ArrayDeque<Integer> bypassed = new ArrayDeque<>();
+        int i = first;
+        NodeState state = firstState;
+        Throwable error = firstError;
+        while(true){
+            terminate(i, state, error);
+            int downstream = switch (state) {
+                case SUCCEEDED -> 0;
+                case CANCELLED -> NodeState.CANCELLED.ordinal();
+                default -> NodeState.SKIPPED.ordinal();
+            };
+            for (int k = succStart[i]; k < succStart[i + 1]; k++) {
+                int s = succ[k];
+                if(downstream != 0){
+                    // 先写状态再减计数，减到 0 的线程一定能看到
+                    poison.compareAndSet(s, 0, downstream);
+                    if(error != null){
+                        errors.compareAndSet(s, null, error);
+                    }
+                }
+                if(pending.decrementAndGet(s) == 0 && !enqueue(s)){
+                    bypassed.add(s);
+                }
+            }
+            if(remaining.decrementAndGet() == 0){
+                finish();
+            }
+            Integer next = bypassed.poll();
+            if(next == null){
+                break;
+            }
+            i = next;
+            int p = poison.get(i);
+            state = p != 0 ? STATES[p] : NodeState.CANCELLED;
+            error = errors.get(i);
+        }
+    }
+
+    private void terminate(int i, NodeState state, Throwable error){
+        endAt[i] = System.nanoTime();
+        if(error != null && state == NodeState.FAILED){
+            errors.set(i, error);
+            if(firstFailure.compareAndSet(null, error)){
+                log.debug("节点 {} 失败", nodes[i].name, error);
+            }
+        }
+        if(state == NodeState.CANCELLED){
+            anyCancelled = true;
+        }
+        states.set(i, state.ordinal());
+        if(failFast && state == NodeState.FAILED){
+            cancel();
+        }
+    }
+
+    private void finish(){
+        Throwable failure = firstFailure.get();
+        if(failure != null){
+            completion.completeExceptionally(failure);
+        }else if(anyCancelled){
+            completion.cancel(false);
+        }else{
+            completion.complete(null);
+        }
+    }
+}
@@ -13,6 +13,7 @@ public class d2_fork_join {
     }
 }
 
+// 一直分裂到一两个元素、两半都 fork、结果装箱成 Integer，只用来演示 fork / join；实际求和用 RangeReducer
 class AddTask extends RecursiveTask<Integer>{
     private int begin;
     private int end;
@@ -37,6 +38,7 @@ class AddTask extends RecursiveTask<Integer>{
     }
 }
 
+// 一条 n 层的 fork 链，没有并行度，n 大时会栈溢出；对数组求前缀和用 PrefixScanner
 class MyTask extends RecursiveTask<Integer>{
     private int n;
 
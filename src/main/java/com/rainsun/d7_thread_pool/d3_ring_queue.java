@@ -0,0 +1,330 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+@Slf4j(topic = "c.d3_ring_queue")
+public class d3_ring_queue {
+    public static void main(String[] args) {
+        // 与 d1_mypool 相同的线程池，只是把任务队列换成无锁的环形队列
+        ThreadPool threadPool = new ThreadPool(
+                2,
+                1000, TimeUnit.MILLISECONDS,
+                new RingBlockQueue<>(4),
+                (queue, task) -> queue.put(task));
+
+        for(int i = 0; i < 10; ++ i){
+            int j = i;
+            threadPool.execute(()->{
+                try {
+                    Thread.sleep(200L);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                log.debug("{}", j);
+            });
+        }
+        threadPool.shutdown();
+    }
+}
+
+// 缓存行填充，避免 head 和 tail 落在同一个缓存行上互相失效（伪共享）
+@SuppressWarnings("unused")
+class PaddedAtomicLong extends AtomicLong {
+    private long p1, p2, p3, p4, p5, p6, p7;
+
+    public PaddedAtomicLong() {
+    }
+
+    public PaddedAtomicLong(long initialValue) {
+        super(initialValue);
+    }
+}
+
+/**
+ * 基于数组和序号的无锁多生产者多消费者有界队列
+ * 每个槽位带一个序号：序号 == 入队位置 表示槽位空闲，序号 == 入队位置 + 1 表示槽位已有数据
+ * 生产者和消费者只在各自的位置上 CAS，队列满 / 空时才退回到锁 + 条件变量上阻塞
+ */
+@Slf4j(topic = "c.RingBlockQueue")
+class RingBlockQueue<T> implements TaskQueue<T> {
+    // 1. 环形数组
+    private final Object[] buffer;
+
+    // 2. 每个槽位的序号
+    private final AtomicLongArray sequences;
+
+    // 3. 容量
+    private final int capacity;
+
+    // 4. 下一个入队位置、下一个出队位置
+    private final AtomicLong tail = new PaddedAtomicLong();
+    private final AtomicLong head = new PaddedAtomicLong();
+
+    // 5. 阻塞兜底用的锁和条件变量，只有队列满 / 空时才会用到
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition fullWaitSet = lock.newCondition();
+    private final Condition emptyWaitSet = lock.newCondition();
+
+    // 6. 正在阻塞的生产者、消费者数量，为 0 时快速路径不需要加锁唤醒
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+
+    public RingBlockQueue(int capacity) {
+        if(capacity <= 0){
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.buffer = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    private int index(long pos){
+        return (int) (pos % capacity);
+    }
+
+    // 无锁入队，队列满返回 false
+    private boolean tryOffer(T task){
+        long pos = tail.get();
+        while(true){
+            int index = index(pos);
+            long diff = sequences.get(index) - pos;
+            if(diff == 0){
+                if(tail.compareAndSet(pos, pos + 1)){
+                    buffer[index] = task;
+                    // 这里必须是 volatile 写：写完序号后要读 waitingConsumers，
+                    // 两边都是 volatile 读写才能保证消费者挂起前一定能看到这个元素
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            }else if(diff < 0){
+                // 槽位上一轮的数据还没被取走，队列满
+                return false;
+            }else{
+                // 其他生产者已经占用了这个位置
+                pos = tail.get();
+            }
+        }
+    }
+
+    // 无锁出队，队列空返回 null
+    @SuppressWarnings("unchecked")
+    private T tryTake(){
+        long pos = head.get();
+        while(true){
+            int index = index(pos);
+            long diff = sequences.get(index) - (pos + 1);
+            if(diff == 0){
+                if(head.compareAndSet(pos, pos + 1)){
+                    T t = (T) buffer[index];
+                    buffer[index] = null;
+                    // 槽位留给下一轮的生产者
+                    sequences.set(index, pos + capacity);
+                    return t;
+                }
+                pos = head.get();
+            }else if(diff < 0){
+                return null;
+            }else{
+                pos = head.get();
+            }
+        }
+    }
+
+    private void signalNotEmpty(){
+        signalNotEmpty(1);
+    }
+
+    private void signalNotFull(){
+        signalNotFull(1);
+    }
+
+    // 放入了 n 个元素，最多唤醒 n 个消费者
+    private void signalNotEmpty(int n){
+        if(n > 0 && waitingConsumers.get() > 0){
+            lock.lock();
+            try {
+                for (int i = Math.min(n, waitingConsumers.get()); i > 0; i--) {
+                    emptyWaitSet.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // 取出了 n 个元素，最多唤醒 n 个生产者
+    private void signalNotFull(int n){
+        if(n > 0 && waitingProducers.get() > 0){
+            lock.lock();
+            try {
+                for (int i = Math.min(n, waitingProducers.get()); i > 0; i--) {
+                    fullWaitSet.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // 带超时的阻塞获取
+    @Override
+    public T poll(long timeout, TimeUnit unit){
+        T t = tryTake();
+        if(t == null){
+            long nanos = unit.toNanos(timeout);
+            if(nanos <= 0){
+                return null;
+            }
+            lock.lock();
+            waitingConsumers.incrementAndGet();
+            try {
+                // 先登记再检查，保证和生产者之间不会丢失唤醒
+                while((t = tryTake()) == null){
+                    try{
+                        if(nanos <= 0){
+                            return null;
+                        }
+                        nanos = emptyWaitSet.awaitNanos(nanos);
+                    }catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } finally {
+                waitingConsumers.decrementAndGet();
+                lock.unlock();
+            }
+        }
+        signalNotFull();
+        return t;
+    }
+
+    // 获取任务
+    @Override
+    public T take(){
+        T t = tryTake();
+        if(t == null){
+            lock.lock();
+            waitingConsumers.incrementAndGet();
+            try {
+                while((t = tryTake()) == null){
+                    try{
+                        emptyWaitSet.await();
+                    }catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } finally {
+                waitingConsumers.decrementAndGet();
+                lock.unlock();
+            }
+        }
+        signalNotFull();
+        return t;
+    }
+
+    // 添加任务
+    @Override
+    public void put(T task){
+        if(!tryOffer(task)){
+            lock.lock();
+            waitingProducers.incrementAndGet();
+            try {
+                while(!tryOffer(task)){
+                    try{
+                        log.debug("等待加入任务队列 {}", task);
+                        fullWaitSet.await();
+                    }catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } finally {
+                waitingProducers.decrementAndGet();
+                lock.unlock();
+            }
+        }
+        signalNotEmpty();
+    }
+
+    // 具有超时时间的阻塞添加
+    @Override
+    public boolean offer(T task, long timeout, TimeUnit timeUnit){
+        if(!tryOffer(task)){
+            long nanos = timeUnit.toNanos(timeout);
+            if(nanos <= 0){
+                return false;
+            }
+            lock.lock();
+            waitingProducers.incrementAndGet();
+            try {
+                while(!tryOffer(task)){
+                    try{
+                        if(nanos <= 0){
+                            return false;
+                        }
+                        log.debug("等待加入任务队列 {}", task);
+                        nanos = fullWaitSet.awaitNanos(nanos);
+                    }catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } finally {
+                waitingProducers.decrementAndGet();
+                lock.unlock();
+            }
+        }
+        signalNotEmpty();
+        return true;
+    }
+
+    // 并发修改时只是一个近似值
+    @Override
+    public int getSize(){
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    @Override
+    public void tryPut(RejectPolicy<T> rejectPolicy, T task){
+        if(tryOffer(task)){
+            signalNotEmpty();
+        }else{
+            rejectPolicy.reject(this, task);
+        }
+    }
+
+    // 整批入队后只做一次唤醒
+    @Override
+    public int offerAll(List<? extends T> tasks){
+        int added = 0;
+        while(added < tasks.size() && tryOffer(tasks.get(added))){
+            added++;
+        }
+        signalNotEmpty(added);
+        return added;
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> collection, int maxElements){
+        int drained = 0;
+        T t;
+        while(drained < maxElements && (t = tryTake()) != null){
+            collection.add(t);
+            drained++;
+        }
+        signalNotFull(drained);
+        return drained;
+    }
+}
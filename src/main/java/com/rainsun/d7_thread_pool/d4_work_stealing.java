@@ -0,0 +1,209 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+@Slf4j(topic = "c.d4_work_stealing")
+public class d4_work_stealing {
+    public static void main(String[] args) throws InterruptedException {
+        WorkStealingThreadPool pool = new WorkStealingThreadPool(4, 16, (queue, task) -> queue.put(task));
+
+        // 外部提交 4 个任务，每个任务在 worker 内部再拆出 1000 个小任务
+        int fanOut = 1000;
+        CountDownLatch latch = new CountDownLatch(4 * fanOut);
+        LongAdder sum = new LongAdder();
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            pool.execute(() -> {
+                for (int j = 0; j < fanOut; j++) {
+                    int n = j;
+                    // 在 worker 内提交，进入当前 worker 的本地队列，空闲的 worker 会来偷
+                    pool.execute(() -> {
+                        sum.add(n);
+                        latch.countDown();
+                    });
+                }
+            });
+        }
+        latch.await();
+        long end = System.nanoTime();
+        log.debug("sum = {}, cost: {} us", sum.sum(), (end - start) / 1000);
+        pool.shutdown();
+    }
+}
+
+/**
+ * 工作窃取线程池
+ * 每个 worker 有自己的双端队列：worker 内部提交的任务从头部压入、从头部取出（后进先出，局部性好），
+ * 空闲的 worker 从别人的尾部偷任务；外部线程提交的任务进入共享的注入队列，队列满时走拒绝策略
+ */
+@Slf4j(topic = "c.WorkStealingThreadPool")
+class WorkStealingThreadPool implements Executor {
+    // 外部提交任务的注入队列
+    private final TaskQueue<Runnable> injectionQueue;
+
+    // 拒绝策略，只作用于注入队列
+    private final RejectPolicy<Runnable> rejectPolicy;
+
+    // 全部 worker，固定数量
+    private final Worker[] workers;
+
+    // 已经挂起或准备挂起的 worker
+    private final ConcurrentLinkedQueue<Worker> idleWorkers = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean shutdown;
+
+    public WorkStealingThreadPool(int parallelism, int queueCapacity, RejectPolicy<Runnable> rejectPolicy) {
+        this(parallelism, new BlockQueue<>(queueCapacity), rejectPolicy);
+    }
+
+    public WorkStealingThreadPool(int parallelism, TaskQueue<Runnable> injectionQueue, RejectPolicy<Runnable> rejectPolicy) {
+        this.injectionQueue = injectionQueue;
+        this.rejectPolicy = rejectPolicy;
+        this.workers = new Worker[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            workers[i] = new Worker(i);
+        }
+        for (Worker worker : workers) {
+            worker.start();
+        }
+    }
+
+    // 执行任务
+    @Override
+    public void execute(Runnable task){
+        if(Thread.currentThread() instanceof Worker worker && worker.pool() == this){
+            // worker 内部提交：压入自己的本地队列
+            // 关闭后也接收，worker 退出前会把自己的队列执行完
+            worker.deque.offerFirst(task);
+        }else{
+            if(shutdown){
+                throw new RejectedExecutionException("线程池已关闭 " + task);
+            }
+            injectionQueue.tryPut(rejectPolicy, task);
+            // 入队期间关闭，worker 可能已经退出，没人再执行它；还在队列里就取回来拒绝
+            if(shutdown && injectionQueue.removeIf(t -> t == task)){
+                throw new RejectedExecutionException("线程池已关闭 " + task);
+            }
+        }
+        signalIdle();
+    }
+
+    // 不再接收外部提交的新任务，worker 把剩余任务执行完后退出
+    public void shutdown(){
+        shutdown = true;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    // 唤醒一个空闲 worker
+    private void signalIdle(){
+        Worker idle = idleWorkers.poll();
+        if(idle != null){
+            LockSupport.unpark(idle);
+        }
+    }
+
+    class Worker extends Thread{
+        // 本地双端队列：头部归自己，尾部给别人偷
+        private final ConcurrentLinkedDeque<Runnable> deque = new ConcurrentLinkedDeque<>();
+        private final int index;
+
+        Worker(int index){
+            super("ws-worker-" + index);
+            this.index = index;
+        }
+
+        WorkStealingThreadPool pool(){
+            return WorkStealingThreadPool.this;
+        }
+
+        @Override
+        public void run(){
+            while(true){
+                Runnable task = findTask();
+                if(task == null){
+                    if(shutdown){
+                        break;
+                    }
+                    idle();
+                    continue;
+                }
+                try {
+                    task.run();
+                }catch (Exception e){
+                    e.printStackTrace();
+                }
+            }
+            log.debug("worker 退出 {}", this);
+        }
+
+        // 1. 自己的本地队列 2. 注入队列 3. 偷别人的
+        private Runnable findTask(){
+            Runnable task = deque.pollFirst();
+            if(task != null){
+                return task;
+            }
+            task = injectionQueue.poll(0, TimeUnit.NANOSECONDS);
+            if(task == null){
+                task = steal();
+            }
+            if(task != null && !idleWorkers.isEmpty()){
+                // 从共享来源拿到任务，说明可能还有积压，把唤醒继续传下去
+                signalIdle();
+            }
+            return task;
+        }
+
+        private Runnable steal(){
+            int n = workers.length;
+            int start = ThreadLocalRandom.current().nextInt(n);
+            for (int i = 0; i < n; i++) {
+                Worker victim = workers[(start + i) % n];
+                if(victim != this){
+                    Runnable task = victim.deque.pollLast();
+                    if(task != null){
+                        return task;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void idle(){
+            // 先登记为空闲再检查一次，提交者要么看到这个登记，要么这次检查能看到它提交的任务
+            idleWorkers.offer(this);
+            if(hasVisibleTask() || shutdown){
+                if(!idleWorkers.remove(this)){
+                    // 登记已经被某个提交者消费掉了，这次唤醒转交给别的 worker
+                    signalIdle();
+                }
+                return;
+            }
+            LockSupport.park(this);
+            idleWorkers.remove(this);
+        }
+
+        private boolean hasVisibleTask(){
+            if(injectionQueue.getSize() > 0){
+                return true;
+            }
+            for (Worker worker : workers) {
+                if(!worker.deque.isEmpty()){
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.rainsun.d7_thread_pool;
+
+import jdk.jfr.consumer.RecordingStream;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+@Slf4j(topic = "c.d5_virtual_thread")
+public class d5_virtual_thread {
+    public static void main(String[] args) throws InterruptedException {
+        // 最多 100 个任务同时运行，其余的在有界队列里等待
+        VirtualThreadPool pool = new VirtualThreadPool(100, 1000, (queue, task) -> queue.put(task));
+        pool.enablePinningDetection(Duration.ofMillis(20));
+
+        int n = 1000;
+        CountDownLatch latch = new CountDownLatch(n + 1);
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            pool.execute(() -> {
+                try {
+                    // 阻塞 I/O，只挂起虚拟线程，载体线程可以去跑别的任务
+                    Thread.sleep(100L);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                latch.countDown();
+            });
+        }
+        Object monitor = new Object();
+        pool.execute(() -> {
+            synchronized (monitor) {
+                try {
+                    // 在 synchronized 里阻塞会钉住载体线程，会被检测出来
+                    Thread.sleep(50L);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            latch.countDown();
+        });
+        latch.await();
+        long end = System.nanoTime();
+        log.debug("{} 个任务完成, cost: {} ms", n + 1, (end - start) / 1000_000);
+
+        // JFR 事件流有一定延迟
+        Thread.sleep(2000L);
+        log.debug("被钉住次数 {}", pool.getPinnedCount());
+        pool.shutdown();
+    }
+}
+
+/**
+ * 虚拟线程池：每个被接收的任务都跑在一个新的虚拟线程上
+ * 并发度由许可数限制，而不是固定的 worker 集合；拿不到许可的任务进入有界队列，队列满时走拒绝策略
+ * 任务结束时把许可直接转交给队列里的下一个任务
+ */
+@Slf4j(topic = "c.VirtualThreadPool")
+class VirtualThreadPool implements Executor {
+    // 同时运行的任务数
+    private final Semaphore permits;
+
+    // 等待许可的任务
+    private final TaskQueue<Runnable> taskQueue;
+
+    // 拒绝策略
+    private final RejectPolicy<Runnable> rejectPolicy;
+
+    private static final AtomicInteger POOL_IDS = new AtomicInteger();
+
+    // 线程名前缀，每个池不同，用来从 JVM 全局的 JFR 事件中挑出自己的线程
+    private final String threadPrefix = "vt" + POOL_IDS.incrementAndGet() + "-";
+
+    private final ThreadFactory factory = Thread.ofVirtual().name(threadPrefix, 0).factory();
+
+    // 钉住载体线程的次数
+    private final LongAdder pinnedCount = new LongAdder();
+
+    private RecordingStream pinningStream;
+
+    private volatile boolean shutdown;
+
+    public VirtualThreadPool(int maxConcurrency, int queueCapacity, RejectPolicy<Runnable> rejectPolicy) {
+        this(maxConcurrency, new BlockQueue<>(queueCapacity), rejectPolicy);
+    }
+
+    public VirtualThreadPool(int maxConcurrency, TaskQueue<Runnable> taskQueue, RejectPolicy<Runnable> rejectPolicy) {
+        this.permits = new Semaphore(maxConcurrency);
+        this.taskQueue = taskQueue;
+        this.rejectPolicy = rejectPolicy;
+    }
+
+    // 执行任务
+    @Override
+    public void execute(Runnable task){
+        if(shutdown){
+            throw new RejectedExecutionException("线程池已关闭 " + task);
+        }
+        if(permits.tryAcquire()){
+            start(task);
+            return;
+        }
+        taskQueue.tryPut(rejectPolicy, task);
+        // 入队期间所有运行中的任务可能都已经结束，没人来取，再检查一次
+        dispatchQueued();
+    }
+
+    /**
+     * 通过 JFR 的 jdk.VirtualThreadPinned 事件检测钉住载体线程的任务，
+     * 例如在 synchronized 块或本地方法里阻塞，阻塞时长超过 threshold 就记录一次
+     * 也可以用 -Djdk.tracePinnedThreads=full 启动参数直接打印栈
+     */
+    public synchronized void enablePinningDetection(Duration threshold){
+        if(pinningStream != null){
+            return;
+        }
+        RecordingStream stream = new RecordingStream();
+        stream.enable("jdk.VirtualThreadPinned").withThreshold(threshold).withStackTrace();
+        stream.onEvent("jdk.VirtualThreadPinned", event -> {
+            // 事件是整个 JVM 的，只统计这个池创建的虚拟线程
+            String thread = event.getThread() == null ? null : event.getThread().getJavaName();
+            if(thread == null || !thread.startsWith(threadPrefix)){
+                return;
+            }
+            pinnedCount.increment();
+            String frames = event.getStackTrace() == null ? "" : event.getStackTrace().getFrames().stream()
+                    .limit(5)
+                    .map(frame -> frame.getMethod().getType().getName() + "." + frame.getMethod().getName() + ":" + frame.getLineNumber())
+                    .collect(Collectors.joining(" <- "));
+            log.debug("虚拟线程 {} 钉住载体线程 {} ms: {}", thread, event.getDuration().toMillis(), frames);
+        });
+        stream.startAsync();
+        pinningStream = stream;
+    }
+
+    public long getPinnedCount(){
+        return pinnedCount.sum();
+    }
+
+    // 不再接收新任务，已接收的任务继续执行完
+    public synchronized void shutdown(){
+        shutdown = true;
+        if(pinningStream != null){
+            pinningStream.close();
+            pinningStream = null;
+        }
+    }
+
+    private void start(Runnable task){
+        factory.newThread(() -> runTask(task)).start();
+    }
+
+    private void runTask(Runnable task){
+        try {
+            task.run();
+        }catch (Exception e){
+            e.printStackTrace();
+        }finally {
+            // 许可不归还，直接交给队列中的下一个任务
+            Runnable next = taskQueue.poll(0, TimeUnit.NANOSECONDS);
+            if(next != null){
+                start(next);
+            }else{
+                permits.release();
+                dispatchQueued();
+            }
+        }
+    }
+
+    // 有空闲许可并且队列里有任务时，启动一个虚拟线程
+    private void dispatchQueued(){
+        while(taskQueue.getSize() > 0 && permits.tryAcquire()){
+            Runnable next = taskQueue.poll(0, TimeUnit.NANOSECONDS);
+            if(next != null){
+                start(next);
+                return;
+            }
+            // 被别的线程取走了
+            permits.release();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+@Slf4j(topic = "c.d6_metrics")
+public class d6_metrics {
+    public static void main(String[] args) throws InterruptedException {
+        ThreadPool threadPool = new ThreadPool(
+                2, 4,
+                500, TimeUnit.MILLISECONDS,
+                10,
+                (queue, task) -> {
+                    // 一半等待入队，一半调用者自己执行
+                    if(System.nanoTime() % 2 == 0){
+                        queue.offer(task, 10, TimeUnit.MILLISECONDS);
+                    }else{
+                        task.run();
+                    }
+                });
+        ThreadPoolMetrics metrics = threadPool.enableMetrics();
+
+        for(int i = 0; i < 50; ++ i){
+            threadPool.execute(()->{
+                try {
+                    Thread.sleep(20L);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            if(i % 10 == 0){
+                // 运行期间随时可以读取快照
+                log.debug("{}", metrics.snapshot());
+            }
+        }
+        Thread.sleep(1500L);
+        log.debug("{}", metrics.snapshot());
+        threadPool.shutdown();
+    }
+}
+
+// 拒绝策略执行后的结果
+enum RejectOutcome {
+    // 拒绝策略通过 put / offer 把任务放回了队列
+    ENQUEUED,
+    // offer 超时仍然没有放进去
+    TIMED_OUT,
+    // 调用者线程自己执行了任务
+    CALLER_RUNS,
+    // 既没有入队也没有执行，任务被丢弃
+    DISCARDED,
+    // 拒绝策略抛出了异常
+    THREW
+}
+
+/**
+ * 线程池监控指标
+ * 热路径上只有 LongAdder 的累加，没有锁；snapshot 随时可以读取，不需要暂停线程池
+ */
+class ThreadPoolMetrics {
+    // 任务在队列中的等待时间、执行时间
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram runTime = new LatencyHistogram();
+
+    // 正在执行任务的 worker 数
+    private final LongAdder activeWorkers = new LongAdder();
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder[] rejected = new LongAdder[RejectOutcome.values().length];
+
+    private final LongAdder workersCreated = new LongAdder();
+    private final LongAdder workersRetired = new LongAdder();
+
+    // 线程池大小和队列深度直接从线程池读取
+    private final IntSupplier poolSize;
+    private final IntSupplier queueDepth;
+
+    ThreadPoolMetrics(IntSupplier poolSize, IntSupplier queueDepth) {
+        this.poolSize = poolSize;
+        this.queueDepth = queueDepth;
+        for (int i = 0; i < rejected.length; i++) {
+            rejected[i] = new LongAdder();
+        }
+    }
+
+    // 任务执行完，wait 是排队时间，run 是执行时间
+    void taskCompleted(long waitNanos, long runNanos, boolean failed){
+        queueWait.record(waitNanos);
+        runTime.record(runNanos);
+        completed.increment();
+        if(failed){
+            this.failed.increment();
+        }
+    }
+
+    void taskStarted(){
+        activeWorkers.increment();
+    }
+
+    void taskFinished(){
+        activeWorkers.decrement();
+    }
+
+    void workerCreated(){
+        workersCreated.increment();
+    }
+
+    void workerRetired(){
+        workersRetired.increment();
+    }
+
+    // 包装拒绝策略，按执行结果分类计数，只在拒绝时才有额外开销
+    RejectPolicy<Runnable> instrument(RejectPolicy<Runnable> policy){
+        return (queue, task) -> {
+            OutcomeRecordingQueue view = new OutcomeRecordingQueue(queue);
+            RejectOutcome outcome = RejectOutcome.DISCARDED;
+            try {
+                policy.reject(view, task);
+                if(view.outcome != null){
+                    outcome = view.outcome;
+                }else if(task instanceof ThreadPool.TimedTask timed && timed.isStarted()){
+                    outcome = RejectOutcome.CALLER_RUNS;
+                }
+            } catch (RuntimeException | Error e) {
+                outcome = RejectOutcome.THREW;
+                throw e;
+            } finally {
+                rejected[outcome.ordinal()].increment();
+            }
+        };
+    }
+
+    public Snapshot snapshot(){
+        Map<RejectOutcome, Long> rejects = new EnumMap<>(RejectOutcome.class);
+        long rejectedTotal = 0;
+        for (RejectOutcome outcome : RejectOutcome.values()) {
+            long n = rejected[outcome.ordinal()].sum();
+            rejects.put(outcome, n);
+            rejectedTotal += n;
+        }
+        int size = poolSize.getAsInt();
+        int active = (int) Math.min(size, Math.max(0, activeWorkers.sum()));
+        return new Snapshot(size, active, size - active, queueDepth.getAsInt(),
+                completed.sum(), failed.sum(), rejectedTotal, rejects,
+                workersCreated.sum(), workersRetired.sum(),
+                queueWait.snapshot(), runTime.snapshot());
+    }
+
+    public record Snapshot(int poolSize, int activeWorkers, int idleWorkers, int queueDepth,
+                           long completed, long failed, long rejected, Map<RejectOutcome, Long> rejectedByOutcome,
+                           long workersCreated, long workersRetired,
+                           LatencyHistogram.Snapshot queueWait, LatencyHistogram.Snapshot runTime) {
+        @Override
+        public String toString() {
+            return "workers=" + poolSize + " (active=" + activeWorkers + ", idle=" + idleWorkers + ")" +
+                    ", queue=" + queueDepth +
+                    ", completed=" + completed + ", failed=" + failed +
+                    ", rejected=" + rejected + " " + rejectedByOutcome +
+                    ", created=" + workersCreated + ", retired=" + workersRetired +
+                    ", wait[" + queueWait + "], run[" + runTime + "]";
+        }
+    }
+
+    // 交给拒绝策略的队列视图，记录策略有没有把任务放回队列
+    private static final class OutcomeRecordingQueue implements TaskQueue<Runnable> {
+        private final TaskQueue<Runnable> queue;
+        private RejectOutcome outcome;
+
+        OutcomeRecordingQueue(TaskQueue<Runnable> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public Runnable poll(long timeout, TimeUnit unit) {
+            return queue.poll(timeout, unit);
+        }
+
+        @Override
+        public Runnable take() {
+            return queue.take();
+        }
+
+        @Override
+        public void put(Runnable task) {
+            queue.put(task);
+            outcome = RejectOutcome.ENQUEUED;
+        }
+
+        @Override
+        public boolean offer(Runnable task, long timeout, TimeUnit timeUnit) {
+            boolean added = queue.offer(task, timeout, timeUnit);
+            outcome = added ? RejectOutcome.ENQUEUED : RejectOutcome.TIMED_OUT;
+            return added;
+        }
+
+        @Override
+        public int getSize() {
+            return queue.getSize();
+        }
+
+        @Override
+        public void tryPut(RejectPolicy<Runnable> rejectPolicy, Runnable task) {
+            queue.tryPut(rejectPolicy, task);
+        }
+    }
+}
+
+/**
+ * 按 2 的幂分桶的延迟直方图，每个桶是一个 LongAdder，记录时没有竞争
+ * 第 i 个桶记录 [2^(i-1), 2^i) 纳秒的样本，百分位给出的是桶的上界
+ */
+class LatencyHistogram {
+    private final LongAdder[] buckets = new LongAdder[65];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos){
+        if(nanos < 0){
+            nanos = 0;
+        }
+        buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    Snapshot snapshot(){
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return new Snapshot(count.sum(), sum.sum(), max.get(), counts);
+    }
+
+    public record Snapshot(long count, long sumNanos, long maxNanos, long[] buckets) {
+        public double meanNanos(){
+            return count == 0 ? 0 : (double) sumNanos / count;
+        }
+
+        // p 取值 0 ~ 1
+        public long percentileNanos(double p){
+            long total = 0;
+            for (long c : buckets) {
+                total += c;
+            }
+            if(total == 0){
+                return 0;
+            }
+            long rank = (long) Math.ceil(p * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if(seen >= rank){
+                    return i == 0 ? 0 : Math.min(maxNanos, i == 64 ? Long.MAX_VALUE : (1L << i) - 1);
+                }
+            }
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count +
+                    ", mean=" + TimeUnit.NANOSECONDS.toMicros((long) meanNanos()) + "us" +
+                    ", p50=" + TimeUnit.NANOSECONDS.toMicros(percentileNanos(0.5)) + "us" +
+                    ", p99=" + TimeUnit.NANOSECONDS.toMicros(percentileNanos(0.99)) + "us" +
+                    ", max=" + TimeUnit.NANOSECONDS.toMicros(maxNanos) + "us";
+        }
+    }
+}
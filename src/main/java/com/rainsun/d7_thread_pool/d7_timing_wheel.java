@@ -0,0 +1,446 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Slf4j(topic = "c.d7_timing_wheel")
+public class d7_timing_wheel {
+    public static void main(String[] args) throws InterruptedException {
+        ThreadPool threadPool = new ThreadPool(
+                2,
+                1000, TimeUnit.MILLISECONDS,
+                10,
+                (queue, task) -> log.debug("放弃 {}", task));
+        HashedWheelTimer timer = new HashedWheelTimer(threadPool, 10, TimeUnit.MILLISECONDS);
+
+        timer.schedule(() -> log.debug("延迟 500ms"), 500, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> log.debug("延迟 2s"), 2, TimeUnit.SECONDS);
+        HashedWheelTimer.Timeout cancelled = timer.schedule(() -> log.debug("不会执行"), 1, TimeUnit.SECONDS);
+        cancelled.cancel();
+        timer.scheduleAtFixedRate(() -> log.debug("执行监控记录"), 0, 1, TimeUnit.SECONDS);
+        // 超出一圈的延迟，会从上层时间轮逐级降下来
+        timer.schedule(() -> log.debug("延迟 3s"), 3, TimeUnit.SECONDS);
+
+        Thread.sleep(3500);
+        Set<HashedWheelTimer.Timeout> unprocessed = timer.stop();
+        log.debug("未执行的定时任务 {} 个", unprocessed.size());
+        threadPool.shutdown();
+    }
+}
+
+/**
+ * 分层哈希时间轮
+ * 每层 64 个槽，第 0 层一个槽代表一个 tick，第 n 层一个槽代表 64^n 个 tick；
+ * 低层转完一圈时把上一层当前槽里的任务重新分配到低层（降级），插入和取消都是 O(1)
+ * 只有时间轮线程操作槽位：其他线程提交 / 取消的任务先进入无锁队列，每个 tick 开始时再搬进时间轮
+ * 到期的任务交给 executor（例如 ThreadPool）执行，时间轮线程本身不执行任务，
+ * 所以 executor 的拒绝策略不应该阻塞
+ */
+@Slf4j(topic = "c.HashedWheelTimer")
+class HashedWheelTimer {
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 6;
+    // 能表示的最大延迟 tick 数
+    private static final long MAX_TICKS = 1L << (WHEEL_BITS * LEVELS);
+
+    private static final int INIT = 0;
+    private static final int STARTED = 1;
+    private static final int STOPPED = 2;
+
+    // 每个 tick 最多搬运的新任务数，避免大量提交时时间轮线程一直搬不完
+    private static final int MAX_TRANSFER_PER_TICK = 100_000;
+
+    // 到期任务交给它执行
+    private final Executor executor;
+
+    private final long tickNanos;
+
+    // wheels[level][slot]
+    private final Bucket[][] wheels = new Bucket[LEVELS][WHEEL_SIZE];
+
+    // 新提交和被取消的任务，多个线程写入，时间轮线程读取
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+
+    // 还没有到期也没有取消的任务数
+    private final AtomicLong pendingCount = new AtomicLong();
+
+    private final AtomicInteger state = new AtomicInteger(INIT);
+
+    private final Thread workerThread;
+
+    // 时间轮启动时间，任务的到期时间都相对它计算
+    private volatile long startTime;
+
+    // 当前正在处理的 tick，只有时间轮线程访问
+    private long tick;
+
+    // 停止时还没执行的任务
+    private final Set<Timeout> unprocessed = new HashSet<>();
+
+    public HashedWheelTimer(Executor executor, long tickDuration, TimeUnit unit) {
+        this.executor = Objects.requireNonNull(executor);
+        this.tickNanos = unit.toNanos(tickDuration);
+        if(tickNanos <= 0){
+            throw new IllegalArgumentException("tickDuration must be positive: " + tickDuration);
+        }
+        for (Bucket[] wheel : wheels) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheel[i] = new Bucket();
+            }
+        }
+        workerThread = new Thread(this::run, "timing-wheel");
+    }
+
+    // 延迟执行一次
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit){
+        return newTimeout(task, unit.toNanos(delay), 0);
+    }
+
+    // 固定频率执行，上一次还没执行完（包括还在 executor 队列里）时跳过本次，不会并发执行同一个任务
+    // 周期不能小于一个 tick
+    public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit){
+        long periodNanos = unit.toNanos(period);
+        if(periodNanos < tickNanos){
+            throw new IllegalArgumentException("period 不能小于 tick: " + periodNanos + "ns < " + tickNanos + "ns");
+        }
+        return newTimeout(task, unit.toNanos(initialDelay), periodNanos);
+    }
+
+    public long pendingTimeouts(){
+        return pendingCount.get();
+    }
+
+    /**
+     * 两阶段终止：打断时间轮线程，线程在下一次检查打断标记时收尾并退出
+     * 返回还没有执行的定时任务
+     */
+    public Set<Timeout> stop(){
+        if(Thread.currentThread() == workerThread){
+            throw new IllegalStateException("不能在时间轮线程里调用 stop");
+        }
+        if(state.getAndSet(STOPPED) != STARTED){
+            return Collections.emptySet();
+        }
+        workerThread.interrupt();
+        boolean interrupted = false;
+        while(workerThread.isAlive()){
+            try {
+                workerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        return Collections.unmodifiableSet(unprocessed);
+    }
+
+    private Timeout newTimeout(Runnable task, long delayNanos, long periodNanos){
+        Objects.requireNonNull(task);
+        start();
+        delayNanos = Math.max(0, delayNanos);
+        if(delayNanos / tickNanos >= MAX_TICKS || periodNanos / tickNanos >= MAX_TICKS){
+            throw new IllegalArgumentException("延迟超出时间轮范围: " + delayNanos + "ns");
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + delayNanos, periodNanos);
+        pendingCount.incrementAndGet();
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    private void start(){
+        int s = state.get();
+        if(s == INIT){
+            // 先确定启动时间再启动线程，提交线程可以直接用它算到期时间
+            synchronized (this){
+                if(state.get() == INIT){
+                    startTime = System.nanoTime();
+                    state.set(STARTED);
+                    workerThread.start();
+                }
+            }
+        }else if(s == STOPPED){
+            throw new IllegalStateException("时间轮已停止");
+        }
+    }
+
+    private void run(){
+        Thread current = Thread.currentThread();
+        while(true){
+            if(current.isInterrupted()){
+                log.debug("时间轮停止，料理后事...");
+                collectUnprocessed();
+                break;
+            }
+            try {
+                waitForNextTick(); // 情况一：sleep 过程被打断
+                // 情况二：处理 tick 过程中被打断，下一轮循环检查打断标记
+                transferPending();
+                processCancelled();
+                expire();
+                tick++;
+            } catch (InterruptedException e) {
+                // sleep 被打断会清除打断标记，重新设置以便在上面的 if 里退出
+                current.interrupt();
+            }
+        }
+    }
+
+    // 睡到当前 tick 的结束时间，保证任务不会提前到期
+    private void waitForNextTick() throws InterruptedException {
+        long sleepNanos = startTime + (tick + 1) * tickNanos - System.nanoTime();
+        if(sleepNanos > 0){
+            TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        }
+    }
+
+    private void transferPending(){
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            Timeout timeout = pendingTimeouts.poll();
+            if(timeout == null){
+                break;
+            }
+            if(timeout.state.get() == Timeout.WAITING){
+                place(timeout, tick);
+            }
+        }
+    }
+
+    private void processCancelled(){
+        Timeout timeout;
+        while((timeout = cancelledTimeouts.poll()) != null){
+            if(timeout.bucket != null){
+                timeout.bucket.remove(timeout);
+            }
+            pendingCount.decrementAndGet();
+        }
+    }
+
+    // 按剩余 tick 数选择层，再按到期 tick 的对应位选择槽
+    // 已经到期的任务放到 minTick：当前槽还没处理时是 tick，处理过之后必须是 tick + 1，否则要等转完一圈
+    private void place(Timeout timeout, long minTick){
+        long expireTick = Math.max(timeout.deadline / tickNanos, minTick);
+        long delta = expireTick - tick;
+        int level = 0;
+        while(level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))){
+            level++;
+        }
+        int slot = (int) ((expireTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        wheels[level][slot].add(timeout);
+    }
+
+    private void expire(){
+        // 1. 低层转完一圈，上一层当前槽里的任务降级到低层
+        for (int level = 1; level < LEVELS; level++) {
+            if(((tick >>> (WHEEL_BITS * (level - 1))) & WHEEL_MASK) != 0){
+                break;
+            }
+            int slot = (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+            Timeout timeout = wheels[level][slot].detachAll();
+            while(timeout != null){
+                Timeout next = timeout.detach();
+                place(timeout, tick);
+                timeout = next;
+            }
+        }
+        // 2. 第 0 层当前槽里的任务到期
+        Timeout timeout = wheels[0][(int) (tick & WHEEL_MASK)].detachAll();
+        while(timeout != null){
+            Timeout next = timeout.detach();
+            if(timeout.deadline / tickNanos > tick){
+                place(timeout, tick + 1);
+            }else{
+                fire(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    private void fire(Timeout timeout){
+        if(timeout.period == 0){
+            if(!timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)){
+                return;
+            }
+            pendingCount.decrementAndGet();
+            dispatch(timeout);
+            return;
+        }
+        if(timeout.state.get() != Timeout.WAITING){
+            return;
+        }
+        // 提交前先占用，run 结束时释放；只检查是否正在执行的话，executor 积压时同一个任务会被提交两次并发执行
+        if(timeout.scheduled.compareAndSet(false, true)){
+            dispatch(timeout);
+        }else{
+            log.debug("上一次还没执行完，跳过 {}", timeout.task);
+        }
+        // 固定频率：按上一次的到期时间推算下一次，不累积漂移，落后时从下一个 tick 开始追赶
+        timeout.deadline += timeout.period;
+        place(timeout, tick + 1);
+    }
+
+    private void dispatch(Timeout timeout){
+        int runs = timeout.runs;
+        try {
+            if(executor instanceof ThreadPool pool){
+                // 拒绝策略丢弃任务时 future 异常完成，这次提交没有执行过就释放占用，否则周期任务再也不会执行
+                pool.submit(timeout).exceptionally(e -> {
+                    if(timeout.runs == runs){
+                        timeout.scheduled.set(false);
+                    }
+                    return null;
+                });
+            }else{
+                executor.execute(timeout);
+            }
+        } catch (RuntimeException e) {
+            timeout.scheduled.set(false);
+            log.debug("定时任务提交失败 {}", timeout.task, e);
+        }
+    }
+
+    private void collectUnprocessed(){
+        for (Bucket[] wheel : wheels) {
+            for (Bucket bucket : wheel) {
+                Timeout timeout = bucket.detachAll();
+                while(timeout != null){
+                    Timeout next = timeout.detach();
+                    if(timeout.state.get() == Timeout.WAITING){
+                        unprocessed.add(timeout);
+                    }
+                    timeout = next;
+                }
+            }
+        }
+        Timeout timeout;
+        while((timeout = pendingTimeouts.poll()) != null){
+            if(timeout.state.get() == Timeout.WAITING){
+                unprocessed.add(timeout);
+            }
+        }
+    }
+
+    // 定时任务句柄，同时也是交给 executor 执行的 Runnable
+    final class Timeout implements Runnable {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long period;
+        // 相对 startTime 的到期时间
+        private long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // 周期任务已经交给 executor 并且还没执行完
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // 开始执行的次数，只有占用了 scheduled 的线程会修改
+        private volatile int runs;
+
+        // 所在槽的双向链表，只有时间轮线程访问
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(Runnable task, long deadline, long period) {
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        // 只打标记并登记，真正从槽里摘除由时间轮线程在下一个 tick 完成
+        public boolean cancel(){
+            if(!state.compareAndSet(WAITING, CANCELLED)){
+                return false;
+            }
+            cancelledTimeouts.add(this);
+            return true;
+        }
+
+        public boolean isCancelled(){
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired(){
+            return state.get() == EXPIRED;
+        }
+
+        @Override
+        public void run() {
+            runs++;
+            try {
+                task.run();
+            } finally {
+                scheduled.set(false);
+            }
+        }
+
+        // 从已经摘下的链表上断开，返回下一个
+        private Timeout detach(){
+            Timeout n = next;
+            next = null;
+            prev = null;
+            bucket = null;
+            return n;
+        }
+
+        @Override
+        public String toString() {
+            return "Timeout{" + task + "}";
+        }
+    }
+
+    // 槽：双向链表，删除是 O(1)
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout){
+            timeout.bucket = this;
+            timeout.prev = tail;
+            timeout.next = null;
+            if(tail == null){
+                head = timeout;
+            }else{
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout){
+            if(timeout.prev == null){
+                head = timeout.next;
+            }else{
+                timeout.prev.next = timeout.next;
+            }
+            if(timeout.next == null){
+                tail = timeout.prev;
+            }else{
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.detach();
+        }
+
+        // 整条链表摘下来，调用方逐个 detach
+        Timeout detachAll(){
+            Timeout h = head;
+            head = null;
+            tail = null;
+            return h;
+        }
+    }
+}
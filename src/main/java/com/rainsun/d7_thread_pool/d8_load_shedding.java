@@ -0,0 +1,268 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+@Slf4j(topic = "c.d8_load_shedding")
+public class d8_load_shedding {
+    public static void main(String[] args) throws InterruptedException {
+        // 排队时间在 20ms 内一直高于 5ms 时开始丢弃，队列远没有满
+        CoDelRejectPolicy<Runnable> coDel = new CoDelRejectPolicy<>(
+                5, 20, TimeUnit.MILLISECONDS,
+                (queue, task) -> {});
+        ThreadPool threadPool = new ThreadPool(
+                2,
+                1000, TimeUnit.MILLISECONDS,
+                new RingBlockQueue<>(10_000),
+                coDel);
+        ThreadPoolMetrics metrics = threadPool.enableMetrics();
+
+        // 每 1ms 提交一个 3ms 的任务，2 个 worker 处理不过来
+        for(int i = 0; i < 1000; ++ i){
+            threadPool.execute(()->{
+                try {
+                    Thread.sleep(3L);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            Thread.sleep(1L);
+        }
+        Thread.sleep(500L);
+        log.debug("CoDel 丢弃 {} 个", coDel.getShedCount());
+        log.debug("{}", metrics.snapshot());
+        threadPool.shutdown();
+    }
+}
+
+/**
+ * 根据任务排队时间（sojourn time）决策的拒绝策略
+ * ThreadPool 在任务入队前调用 shouldReject，不必等到队列满；任务开始执行时通过 onDequeue 回报排队时间
+ */
+interface SojournRejectPolicy<T> extends RejectPolicy<T> {
+    // 任务开始执行时回报它在队列里等待的时间
+    void onDequeue(long sojournNanos, long now);
+
+    // 入队前调用，返回 true 表示这个任务不入队，直接交给 reject 处理
+    boolean shouldReject(TaskQueue<T> queue, T task, long now);
+}
+
+/**
+ * CoDel 风格的拒绝策略
+ * 排队时间在一个 interval 内始终高于 target（也就是这段时间内的最小排队时间都高于 target），说明队列里积压的是
+ * 持续存在的"站立队列"而不是瞬时突发，于是进入丢弃状态；丢弃间隔按 interval / sqrt(丢弃次数) 逐渐缩短，
+ * 直到排队时间回落到 target 以下。被丢弃的任务和队列真正满了的任务都交给 fallback 处理
+ */
+@Slf4j(topic = "c.CoDelRejectPolicy")
+class CoDelRejectPolicy<T> implements SojournRejectPolicy<T> {
+    private final long targetNanos;
+    private final long intervalNanos;
+
+    // 被丢弃的任务怎么处理，例如记录日志、抛出异常
+    private final RejectPolicy<T> fallback;
+
+    // 排队时间第一次高于 target 后，再过一个 interval 的时刻，0 表示当前低于 target
+    private volatile long firstAboveTime;
+
+    private volatile boolean dropping;
+
+    // 下一次丢弃的时刻，CAS 保证并发提交时每个时刻只丢一个
+    private final AtomicLong dropNext = new AtomicLong();
+    private final AtomicInteger dropCount = new AtomicInteger();
+
+    private final LongAdder shed = new LongAdder();
+
+    public CoDelRejectPolicy(long target, long interval, TimeUnit unit, RejectPolicy<T> fallback) {
+        this.targetNanos = unit.toNanos(target);
+        this.intervalNanos = unit.toNanos(interval);
+        this.fallback = fallback;
+    }
+
+    @Override
+    public void onDequeue(long sojournNanos, long now) {
+        if(sojournNanos < targetNanos){
+            // 只在状态变化时写，避免每个任务都写共享变量
+            if(firstAboveTime != 0){
+                firstAboveTime = 0;
+            }
+            if(dropping){
+                dropping = false;
+                log.debug("排队时间回落，停止丢弃");
+            }
+            return;
+        }
+        long first = firstAboveTime;
+        if(first == 0){
+            firstAboveTime = now + intervalNanos;
+        }else if(!dropping && now >= first){
+            startDropping(now);
+        }
+    }
+
+    private synchronized void startDropping(long now){
+        if(dropping){
+            return;
+        }
+        int count = dropCount.get();
+        // 刚退出丢弃状态不久又进入，说明负载没有真正降下来，沿用之前的丢弃频率
+        dropCount.set(count > 2 && now - dropNext.get() < 8 * intervalNanos ? count - 2 : 1);
+        dropNext.set(now);
+        dropping = true;
+        log.debug("排队时间持续高于 {}us，开始丢弃", TimeUnit.NANOSECONDS.toMicros(targetNanos));
+    }
+
+    @Override
+    public boolean shouldReject(TaskQueue<T> queue, T task, long now) {
+        if(!dropping){
+            return false;
+        }
+        if(queue.getSize() == 0){
+            // 队列已经排空，不会再有任务回报排队时间，在这里退出丢弃状态
+            dropping = false;
+            firstAboveTime = 0;
+            return false;
+        }
+        long next = dropNext.get();
+        if(now < next){
+            return false;
+        }
+        int count = dropCount.get() + 1;
+        if(!dropNext.compareAndSet(next, now + (long) (intervalNanos / Math.sqrt(count)))){
+            return false;
+        }
+        dropCount.incrementAndGet();
+        shed.increment();
+        return true;
+    }
+
+    @Override
+    public void reject(TaskQueue<T> queue, T task) {
+        fallback.reject(queue, task);
+    }
+
+    public long getShedCount(){
+        return shed.sum();
+    }
+}
+
+/**
+ * 过载时优先服务新任务
+ * 排队时间在一个 interval 内始终高于 target 时认为过载：每来一个新任务，就把队头等得最久的任务踢出去交给 onEvict，
+ * 新任务照常入队。队头的任务多半已经超过调用方的超时时间，执行它只是浪费，
+ * 这样队列长度不再增长，留下来的都是较新的任务；队列满时同样踢掉队头为新任务腾位置
+ * 交给 onEvict 的是原始任务（去掉 TimedTask 包装），submit 返回的 future 被踢出时以 RejectedExecutionException 完成
+ */
+@Slf4j(topic = "c.LifoUnderOverloadPolicy")
+class LifoUnderOverloadPolicy<T> implements SojournRejectPolicy<T> {
+    private final long targetNanos;
+    private final long intervalNanos;
+
+    // 被踢出的任务怎么处理
+    private final Consumer<T> onEvict;
+
+    private volatile long firstAboveTime;
+    private volatile boolean overloaded;
+
+    private final LongAdder evicted = new LongAdder();
+
+    public LifoUnderOverloadPolicy(long target, long interval, TimeUnit unit, Consumer<T> onEvict) {
+        this.targetNanos = unit.toNanos(target);
+        this.intervalNanos = unit.toNanos(interval);
+        this.onEvict = onEvict;
+    }
+
+    @Override
+    public void onDequeue(long sojournNanos, long now) {
+        if(sojournNanos < targetNanos){
+            if(firstAboveTime != 0){
+                firstAboveTime = 0;
+            }
+            if(overloaded){
+                overloaded = false;
+            }
+            return;
+        }
+        long first = firstAboveTime;
+        if(first == 0){
+            firstAboveTime = now + intervalNanos;
+        }else if(!overloaded && now >= first){
+            overloaded = true;
+            log.debug("排队时间持续高于 {}us，优先服务新任务", TimeUnit.NANOSECONDS.toMicros(targetNanos));
+        }
+    }
+
+    @Override
+    public boolean shouldReject(TaskQueue<T> queue, T task, long now) {
+        if(!overloaded){
+            return false;
+        }
+        if(queue.getSize() == 0){
+            overloaded = false;
+            firstAboveTime = 0;
+            return false;
+        }
+        evictOldest(queue);
+        return false;
+    }
+
+    // 队列满：踢掉队头，再尝试放入新任务
+    @Override
+    public void reject(TaskQueue<T> queue, T task) {
+        evictOldest(queue);
+        if(!queue.offer(task, 0, TimeUnit.NANOSECONDS)){
+            evict(task);
+        }
+    }
+
+    private void evictOldest(TaskQueue<T> queue){
+        T oldest = queue.poll(0, TimeUnit.NANOSECONDS);
+        if(oldest != null){
+            evict(oldest);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void evict(T task){
+        evicted.increment();
+        // 否则等在 get 上的调用方永远等不到结果
+        PoolFuture.failEvicted(task);
+        onEvict.accept(task instanceof ThreadPool.TimedTask timed ? (T) timed.getTask() : task);
+    }
+
+    public long getEvictedCount(){
+        return evicted.sum();
+    }
+}
+
+/**
+ * 调用者执行，但调用者本身是线程池的 worker 时改为丢弃
+ * worker 在任务里再提交任务被拒绝时，如果自己去执行，就少了一个从队列取任务的线程，队列只会积压得更多，
+ * 所有 worker 都这样做时线程池会完全停止消费
+ */
+@Slf4j(topic = "c.CallerRunsOrDropPolicy")
+class CallerRunsOrDropPolicy<T extends Runnable> implements RejectPolicy<T> {
+    private final LongAdder dropped = new LongAdder();
+
+    @Override
+    public void reject(TaskQueue<T> queue, T task) {
+        if(isPoolWorker(Thread.currentThread())){
+            dropped.increment();
+            log.debug("worker 线程提交被拒绝，放弃 {}", task);
+        }else{
+            task.run();
+        }
+    }
+
+    static boolean isPoolWorker(Thread thread){
+        return thread instanceof ThreadPool.Worker || thread instanceof WorkStealingThreadPool.Worker;
+    }
+
+    public long getDroppedCount(){
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,423 @@
+package com.rainsun.d7_thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+@Slf4j(topic = "c.d9_priority_lanes")
+public class d9_priority_lanes {
+    public static void main(String[] args) throws InterruptedException {
+        // 3 个通道：0 延迟敏感，1 普通，2 批量；出队权重 8 : 2 : 1
+        LaneBlockQueue<Runnable> queue = new LaneBlockQueue<>(
+                new int[]{100, 100, 1000},
+                new int[]{8, 2, 1});
+        ThreadPool threadPool = new ThreadPool(
+                2,
+                1000, TimeUnit.MILLISECONDS,
+                queue,
+                (q, task) -> q.put(task));
+        threadPool.prestartCoreWorkers();
+
+        CountDownLatch latch = new CountDownLatch(520);
+        // 先灌入大量批量任务
+        for(int i = 0; i < 500; ++ i){
+            threadPool.execute(() -> sleep(latch, 2), 2);
+        }
+        // 后来的延迟敏感任务不需要排在所有批量任务后面
+        for(int i = 0; i < 20; ++ i){
+            int j = i;
+            long submitted = System.nanoTime();
+            threadPool.execute(() -> {
+                log.debug("高优先级任务 {} 等待 {} ms", j, (System.nanoTime() - submitted) / 1000_000);
+                sleep(latch, 2);
+            }, 0);
+        }
+        latch.await();
+        for (LaneBlockQueue.LaneStats stats : queue.laneStats()) {
+            log.debug("{}", stats);
+        }
+        threadPool.shutdown();
+    }
+
+    private static void sleep(CountDownLatch latch, long millis){
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        latch.countDown();
+    }
+}
+
+/**
+ * 多优先级通道的阻塞队列
+ * 每个通道有自己的容量，生产者按通道入队；消费者按赤字轮询（deficit round-robin）出队：
+ * 轮到一个通道时给它加上自己的权重作为额度，每取一个任务扣 1，额度用完或通道空了就轮到下一个通道，
+ * 所以高权重通道拿到更多的出队机会，低权重通道也一定能轮到，不会饿死
+ */
+@Slf4j(topic = "c.LaneBlockQueue")
+class LaneBlockQueue<T> implements TaskQueue<T> {
+    // 1. 各个通道
+    private final List<Lane> lanes;
+
+    // 2. 锁
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // 3. 消费者条件变量，任意通道有任务就可以出队
+    private final Condition emptyWaitSet = lock.newCondition();
+
+    // 4. 全部通道的任务数
+    private int count;
+
+    // 5. 当前轮到的通道
+    private int current;
+
+    // 6. 不指定通道时放入的通道
+    private final int defaultLane;
+
+    // 拒绝策略看到的是对应通道的视图，put / offer 会放回原来的通道
+    private final List<LaneView> views = new ArrayList<>();
+
+    public LaneBlockQueue(int[] capacities, int[] weights) {
+        this(capacities, weights, capacities.length - 1);
+    }
+
+    public LaneBlockQueue(int[] capacities, int[] weights, int defaultLane) {
+        if(capacities.length == 0 || capacities.length != weights.length){
+            throw new IllegalArgumentException("capacities 和 weights 长度必须相同且不为空");
+        }
+        if(defaultLane < 0 || defaultLane >= capacities.length){
+            throw new IllegalArgumentException("defaultLane=" + defaultLane);
+        }
+        this.lanes = new ArrayList<>(capacities.length);
+        for (int i = 0; i < capacities.length; i++) {
+            if(capacities[i] <= 0 || weights[i] <= 0){
+                throw new IllegalArgumentException("lane " + i + " 的容量和权重必须为正数");
+            }
+            lanes.add(new Lane(i, capacities[i], weights[i]));
+            views.add(new LaneView(i));
+        }
+        this.defaultLane = defaultLane;
+        lanes.get(0).deficit = lanes.get(0).weight;
+    }
+
+    public int laneCount(){
+        return lanes.size();
+    }
+
+    private Lane lane(int lane){
+        if(lane == DEFAULT_LANE){
+            return lanes.get(defaultLane);
+        }
+        if(lane < 0 || lane >= lanes.size()){
+            throw new IllegalArgumentException("lane=" + lane);
+        }
+        return lanes.get(lane);
+    }
+
+    // 调用方持有锁
+    private void enqueue(Lane lane, T task){
+        lane.add(task, System.nanoTime());
+        count++;
+        emptyWaitSet.signal();
+    }
+
+    // 调用方持有锁并保证 count > 0
+    private T dequeue(){
+        while(true){
+            Lane lane = lanes.get(current);
+            if(lane.size > 0 && lane.deficit > 0){
+                lane.deficit--;
+                count--;
+                T t = lane.remove();
+                lane.notFull.signal();
+                return t;
+            }
+            if(lane.size == 0){
+                // 空通道不积攒额度
+                lane.deficit = 0;
+            }
+            current = (current + 1) % lanes.size();
+            Lane next = lanes.get(current);
+            if(next.size > 0){
+                next.deficit += next.weight;
+            }
+        }
+    }
+
+    // 带超时的阻塞获取
+    @Override
+    public T poll(long timeout, TimeUnit unit) {
+        lock.lock();
+        try {
+            long nanos = unit.toNanos(timeout);
+            while(count == 0){
+                try{
+                    if(nanos <= 0){
+                        return null;
+                    }
+                    nanos = emptyWaitSet.awaitNanos(nanos);
+                }catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 获取任务
+    @Override
+    public T take() {
+        lock.lock();
+        try {
+            while(count == 0){
+                try{
+                    emptyWaitSet.await();
+                }catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(T task) {
+        put(task, DEFAULT_LANE);
+    }
+
+    // 放入指定通道，通道满时阻塞
+    public void put(T task, int laneIndex) {
+        Lane lane = lane(laneIndex);
+        lock.lock();
+        try {
+            while(lane.size == lane.capacity){
+                try{
+                    log.debug("等待加入通道 {} {}", lane.index, task);
+                    lane.notFull.await();
+                }catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            enqueue(lane, task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(T task, long timeout, TimeUnit timeUnit) {
+        return offer(task, timeout, timeUnit, DEFAULT_LANE);
+    }
+
+    // 放入指定通道，通道满时最多等待 timeout
+    public boolean offer(T task, long timeout, TimeUnit timeUnit, int laneIndex) {
+        Lane lane = lane(laneIndex);
+        lock.lock();
+        try {
+            long nanos = timeUnit.toNanos(timeout);
+            while(lane.size == lane.capacity){
+                try{
+                    if(nanos <= 0){
+                        return false;
+                    }
+                    log.debug("等待加入通道 {} {}", lane.index, task);
+                    nanos = lane.notFull.awaitNanos(nanos);
+                }catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            enqueue(lane, task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(T task, int lane) {
+        return offer(task, 0, TimeUnit.NANOSECONDS, lane);
+    }
+
+    @Override
+    public int getSize() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void tryPut(RejectPolicy<T> rejectPolicy, T task) {
+        tryPut(rejectPolicy, task, DEFAULT_LANE);
+    }
+
+    // 指定通道满了才走拒绝策略，其他通道空着也不会占用
+    @Override
+    public void tryPut(RejectPolicy<T> rejectPolicy, T task, int laneIndex) {
+        Lane lane = lane(laneIndex);
+        lock.lock();
+        try {
+            if(lane.size == lane.capacity){
+                lane.rejected++;
+                rejectPolicy.reject(views.get(lane.index), task);
+            }else{
+                enqueue(lane, task);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 批量放入默认通道
+    @Override
+    public int offerAll(List<? extends T> tasks) {
+        Lane lane = lanes.get(defaultLane);
+        lock.lock();
+        try {
+            int n = Math.min(lane.capacity - lane.size, tasks.size());
+            for (int i = 0; i < n; i++) {
+                enqueue(lane, tasks.get(i));
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 批量取出仍然按赤字轮询的顺序
+    @Override
+    public int drainTo(Collection<? super T> collection, int maxElements) {
+        lock.lock();
+        try {
+            int n = Math.min(maxElements, count);
+            for (int i = 0; i < n; i++) {
+                collection.add(dequeue());
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 各通道的深度、吞吐和排队时间
+    public List<LaneStats> laneStats(){
+        lock.lock();
+        try {
+            List<LaneStats> stats = new ArrayList<>(lanes.size());
+            for (Lane lane : lanes) {
+                stats.add(new LaneStats(lane.index, lane.weight, lane.capacity, lane.size,
+                        lane.enqueued, lane.dequeued, lane.rejected, lane.wait.snapshot()));
+            }
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public record LaneStats(int lane, int weight, int capacity, int depth,
+                            long enqueued, long dequeued, long rejected, LatencyHistogram.Snapshot queueWait) {
+        @Override
+        public String toString() {
+            return "lane " + lane + " (weight=" + weight + ", capacity=" + capacity + "): depth=" + depth +
+                    ", enqueued=" + enqueued + ", dequeued=" + dequeued + ", rejected=" + rejected +
+                    ", wait[" + queueWait + "]";
+        }
+    }
+
+    // 单个通道：环形数组，同时记录每个任务的入队时间，不需要额外包装对象
+    private final class Lane {
+        private final int index;
+        private final int capacity;
+        private final int weight;
+        private final Object[] items;
+        private final long[] enqueuedAt;
+        private final Condition notFull = lock.newCondition();
+        private final LatencyHistogram wait = new LatencyHistogram();
+        private int head;
+        private int size;
+        // 本轮剩余的出队额度
+        private int deficit;
+        private long enqueued;
+        private long dequeued;
+        private long rejected;
+
+        Lane(int index, int capacity, int weight) {
+            this.index = index;
+            this.capacity = capacity;
+            this.weight = weight;
+            this.items = new Object[capacity];
+            this.enqueuedAt = new long[capacity];
+        }
+
+        void add(T task, long now){
+            int tail = (head + size) % capacity;
+            items[tail] = task;
+            enqueuedAt[tail] = now;
+            size++;
+            enqueued++;
+        }
+
+        @SuppressWarnings("unchecked")
+        T remove(){
+            T t = (T) items[head];
+            items[head] = null;
+            wait.record(System.nanoTime() - enqueuedAt[head]);
+            head = (head + 1) % capacity;
+            size--;
+            dequeued++;
+            return t;
+        }
+    }
+
+    // 固定通道的视图，交给拒绝策略使用
+    private final class LaneView implements TaskQueue<T> {
+        private final int lane;
+
+        LaneView(int lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public T poll(long timeout, TimeUnit unit) {
+            return LaneBlockQueue.this.poll(timeout, unit);
+        }
+
+        @Override
+        public T take() {
+            return LaneBlockQueue.this.take();
+        }
+
+        @Override
+        public void put(T task) {
+            LaneBlockQueue.this.put(task, lane);
+        }
+
+        @Override
+        public boolean offer(T task, long timeout, TimeUnit timeUnit) {
+            return LaneBlockQueue.this.offer(task, timeout, timeUnit, lane);
+        }
+
+        @Override
+        public int getSize() {
+            return LaneBlockQueue.this.getSize();
+        }
+
+        @Override
+        public void tryPut(RejectPolicy<T> rejectPolicy, T task) {
+            LaneBlockQueue.this.tryPut(rejectPolicy, task, lane);
+        }
+    }
+}
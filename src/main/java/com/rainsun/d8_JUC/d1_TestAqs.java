@@ -1,5 +1,11 @@
 package com.rainsun.d8_JUC;
 
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.concurrent.TimeUnit;
@@ -66,16 +72,35 @@ class MyLock implements Lock {
         public Condition newCondition(){
             return new ConditionObject();
         }
+
+        Thread owner(){
+            return getExclusiveOwnerThread();
+        }
     }
 
     @Override
     public void lock() {
+        // 无竞争时直接拿到锁，不碰 JFR 事件
+        if(sync.tryAcquire(1)){
+            return;
+        }
+        MyLockContendedEvent event = new MyLockContendedEvent();
+        event.begin();
+        Thread owner = sync.owner();
         sync.acquire(1);
+        MyLockContendedEvent.commit(event, owner);
     }
 
     @Override
     public void lockInterruptibly() throws InterruptedException {
+        if(sync.tryAcquire(1)){
+            return;
+        }
+        MyLockContendedEvent event = new MyLockContendedEvent();
+        event.begin();
+        Thread owner = sync.owner();
         sync.acquireInterruptibly(1);
+        MyLockContendedEvent.commit(event, owner);
     }
 
     @Override
@@ -97,4 +122,26 @@ class MyLock implements Lock {
     public Condition newCondition() {
         return sync.newCondition();
     }
-}
\ No newline at end of file
+}
+
+/**
+ * MyLock 发生竞争时的等待，持续时间是等待获取锁的时间
+ * 默认关闭，无竞争的加锁不会创建事件
+ */
+@Name("com.rainsun.MyLock.Contended")
+@Label("MyLock Contended")
+@Category({"Lock"})
+@Description("线程获取 MyLock 时锁已被其他线程持有")
+@Enabled(false)
+class MyLockContendedEvent extends Event {
+    @Label("Previous Owner")
+    @Description("开始等待时持有锁的线程")
+    Thread previousOwner;
+
+    static void commit(MyLockContendedEvent event, Thread owner){
+        if(event.shouldCommit()){
+            event.previousOwner = owner;
+            event.commit();
+        }
+    }
+}
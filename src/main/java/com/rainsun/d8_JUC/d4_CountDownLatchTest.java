@@ -44,6 +44,7 @@ public class d4_CountDownLatchTest {
             countDownLatch.countDown();
             log.debug("end...{}", countDownLatch.getCount());
         });
+        // 等待的任务一直占着线程池的一个线程，依赖多的时候用 d7_thread_pool.d25_task_dag 中的 DagScheduler
         service.submit(()->{
             log.debug("waiting...");
             try {